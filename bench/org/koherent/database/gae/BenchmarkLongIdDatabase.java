@@ -0,0 +1,45 @@
+package org.koherent.database.gae;
+
+import com.google.appengine.api.datastore.Entity;
+
+public class BenchmarkLongIdDatabase extends LongIdDatabase<BenchmarkValue> {
+	private static final String KIND = "BenchmarkValue";
+
+	private static final String NAME = "name";
+	private static final String COUNT = "count";
+	private static final String DESCRIPTION = "description";
+
+	@Override
+	protected String getKind() {
+		return KIND;
+	}
+
+	@Override
+	protected BenchmarkValue assignId(BenchmarkValue value, Long id) {
+		return new BenchmarkValue(id, value.getName(), value.getCount(),
+				value.getDescription());
+	}
+
+	@Override
+	protected BenchmarkValue toValue(Entity entity) {
+		if (entity == null) {
+			return null;
+		}
+
+		return new BenchmarkValue(toId(entity.getKey()),
+				(String) entity.getProperty(NAME),
+				(Long) entity.getProperty(COUNT),
+				(String) entity.getProperty(DESCRIPTION));
+	}
+
+	@Override
+	protected Entity toEntity(BenchmarkValue value) {
+		Entity entity = createEntity(value.getId());
+		setPropertyIfNotNull(entity, NAME, value.getName());
+		setPropertyIfNotNull(entity, COUNT, value.getCount());
+		setUnindexedPropertyIfNotNull(entity, DESCRIPTION,
+				value.getDescription());
+
+		return entity;
+	}
+}
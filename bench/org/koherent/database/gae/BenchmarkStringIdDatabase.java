@@ -0,0 +1,16 @@
+package org.koherent.database.gae;
+
+public class BenchmarkStringIdDatabase extends
+		StringIdDatabase<BenchmarkStringValue> {
+	private static final String KIND = "BenchmarkStringValue";
+
+	@Override
+	protected String getKind() {
+		return KIND;
+	}
+
+	@Override
+	protected Class<BenchmarkStringValue> getValueClass() {
+		return BenchmarkStringValue.class;
+	}
+}
@@ -0,0 +1,47 @@
+package org.koherent.database.gae;
+
+import org.koherent.database.Value;
+
+public class BenchmarkStringValue implements Value<String> {
+	@Id
+	private String id;
+
+	@Property
+	private String name;
+
+	@Property
+	private long count;
+
+	@Property(indexed = false)
+	private String description;
+
+	private BenchmarkStringValue() {
+		super();
+	}
+
+	public BenchmarkStringValue(String id, String name, long count,
+			String description) {
+		super();
+		this.id = id;
+		this.name = name;
+		this.count = count;
+		this.description = description;
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+}
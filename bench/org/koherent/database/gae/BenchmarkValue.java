@@ -0,0 +1,35 @@
+package org.koherent.database.gae;
+
+import org.koherent.database.Value;
+
+public class BenchmarkValue implements Value<Long> {
+	private Long id;
+	private String name;
+	private long count;
+	private String description;
+
+	public BenchmarkValue(Long id, String name, long count, String description) {
+		super();
+		this.id = id;
+		this.name = name;
+		this.count = count;
+		this.description = description;
+	}
+
+	@Override
+	public Long getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+}
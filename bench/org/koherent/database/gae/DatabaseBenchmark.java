@@ -0,0 +1,423 @@
+package org.koherent.database.gae;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.koherent.database.DatabaseException;
+import org.koherent.database.DuplicateIdException;
+import org.koherent.database.IdNotFoundException;
+import org.koherent.database.IllegalUpdateException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Environment;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DatabaseBenchmark {
+	private static final int NUMBER_OF_VALUES = 1000;
+	private static final int NUMBER_OF_CONTENDING_THREADS = 4;
+	private static final String DESCRIPTION = "Lorem ipsum dolor sit amet, "
+			+ "consectetur adipiscing elit, sed do eiusmod tempor incididunt "
+			+ "ut labore et dolore magna aliqua.";
+
+	@Param({ "10", "100" })
+	private int batchSize;
+
+	@Param({ "20" })
+	private int pageSize;
+
+	private LocalServiceTestHelper helper;
+	private Environment environment;
+
+	private BenchmarkLongIdDatabase longIdDatabase;
+	private BenchmarkStringIdDatabase stringIdDatabase;
+
+	private List<Long> ids;
+	private List<Long> batchIds;
+	private List<Long> mixedIds;
+	private List<Long> writtenIds;
+	private Long contendedId;
+
+	private List<String> stringIds;
+	private List<String> stringBatchIds;
+	private List<String> stringMixedIds;
+	private List<String> stringWrittenIds;
+
+	private BenchmarkValue value;
+	private Entity entity;
+	private BenchmarkStringValue stringValue;
+	private Entity stringEntity;
+
+	@Setup(Level.Trial)
+	public void setUp() throws DuplicateIdException, IdNotFoundException,
+			DatabaseException {
+		helper = new LocalServiceTestHelper(
+				new LocalDatastoreServiceTestConfig().setNoStorage(true));
+		helper.setUp();
+		environment = ApiProxy.getCurrentEnvironment();
+
+		longIdDatabase = new BenchmarkLongIdDatabase();
+		stringIdDatabase = new BenchmarkStringIdDatabase();
+
+		ids = new ArrayList<Long>();
+		for (int i = 0; i < NUMBER_OF_VALUES; i++) {
+			ids.add(longIdDatabase.add(createValue(null, i)));
+		}
+		batchIds = new ArrayList<Long>(ids.subList(0, batchSize));
+
+		mixedIds = new ArrayList<Long>();
+		for (int i = 0; i < batchSize; i++) {
+			mixedIds.add(i % 2 == 0 ? ids.get(i) : Long.MAX_VALUE / 4 + i);
+		}
+
+		// Values overwritten by the benchmarks are kept apart from the ones
+		// read by the others.
+		writtenIds = new ArrayList<Long>();
+		for (int i = 0; i < batchSize; i++) {
+			writtenIds.add(longIdDatabase.add(createValue(null, i)));
+		}
+		contendedId = longIdDatabase.add(createValue(null, 0));
+
+		// String keys are compared and encoded differently from numeric ones,
+		// so the same operations are measured with names as ids.
+		stringIds = new ArrayList<String>();
+		List<BenchmarkStringValue> stringValues = new ArrayList<BenchmarkStringValue>();
+		for (int i = 0; i < NUMBER_OF_VALUES; i++) {
+			stringIds.add("value" + i);
+			stringValues.add(createStringValue(stringIds.get(i), i));
+		}
+		stringIdDatabase.put(stringValues);
+		stringBatchIds = new ArrayList<String>(stringIds.subList(0, batchSize));
+
+		stringMixedIds = new ArrayList<String>();
+		for (int i = 0; i < batchSize; i++) {
+			stringMixedIds.add(i % 2 == 0 ? stringIds.get(i) : "missing" + i);
+		}
+
+		// Sorted after the other ids so that the pages read stay the same.
+		stringWrittenIds = new ArrayList<String>();
+		List<BenchmarkStringValue> stringWrittenValues = new ArrayList<BenchmarkStringValue>();
+		for (int i = 0; i < batchSize; i++) {
+			stringWrittenIds.add("written" + i);
+			stringWrittenValues.add(createStringValue(stringWrittenIds.get(i),
+					i));
+		}
+		stringIdDatabase.put(stringWrittenValues);
+
+		value = longIdDatabase.get(ids.get(0));
+		entity = longIdDatabase.toEntity(value);
+		stringValue = new BenchmarkStringValue("benchmark", "benchmark", 0,
+				DESCRIPTION);
+		stringEntity = stringIdDatabase.toEntity(stringValue);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@State(Scope.Thread)
+	public static class ThreadState {
+		private int index;
+		private long nextId = Long.MAX_VALUE / 2;
+
+		@Setup(Level.Trial)
+		public void setUp(DatabaseBenchmark benchmark) {
+			// The local datastore stub is bound to the thread which called
+			// LocalServiceTestHelper.setUp.
+			if (ApiProxy.getCurrentEnvironment() == null) {
+				ApiProxy.setEnvironmentForCurrentThread(benchmark.environment);
+			}
+			index = (int) (Thread.currentThread().getId() % NUMBER_OF_VALUES);
+		}
+
+		private Long nextExistingId(DatabaseBenchmark benchmark) {
+			index = (index + 1) % NUMBER_OF_VALUES;
+			return benchmark.ids.get(index);
+		}
+
+		private Long nextWrittenId(DatabaseBenchmark benchmark) {
+			index = (index + 1) % NUMBER_OF_VALUES;
+			return benchmark.writtenIds.get(index
+					% benchmark.writtenIds.size());
+		}
+
+		private Long nextNewId() {
+			return nextId++;
+		}
+
+		private String nextExistingStringId(DatabaseBenchmark benchmark) {
+			index = (index + 1) % NUMBER_OF_VALUES;
+			return benchmark.stringIds.get(index);
+		}
+
+		private String nextWrittenStringId(DatabaseBenchmark benchmark) {
+			index = (index + 1) % NUMBER_OF_VALUES;
+			return benchmark.stringWrittenIds.get(index
+					% benchmark.stringWrittenIds.size());
+		}
+
+		private String nextNewStringId() {
+			return "new" + nextNewId();
+		}
+
+		private List<String> nextNewStringIds(int size) {
+			List<String> newIds = new ArrayList<String>(size);
+			for (int i = 0; i < size; i++) {
+				newIds.add(nextNewStringId());
+			}
+
+			return newIds;
+		}
+
+		private List<Long> nextNewIds(int size) {
+			List<Long> newIds = new ArrayList<Long>(size);
+			for (int i = 0; i < size; i++) {
+				newIds.add(nextNewId());
+			}
+
+			return newIds;
+		}
+	}
+
+	@Benchmark
+	public BenchmarkValue getSingle(ThreadState state)
+			throws IdNotFoundException, DatabaseException {
+		return longIdDatabase.get(state.nextExistingId(this));
+	}
+
+	@Benchmark
+	public void getBatch(ThreadState state, Blackhole blackhole)
+			throws DatabaseException {
+		for (BenchmarkValue value : longIdDatabase.get(batchIds)) {
+			blackhole.consume(value);
+		}
+	}
+
+	@Benchmark
+	public void putSingle(ThreadState state) throws DatabaseException {
+		longIdDatabase.put(createValue(state.nextWrittenId(this), 1));
+	}
+
+	@Benchmark
+	public void putBatch(ThreadState state) throws DatabaseException {
+		List<BenchmarkValue> values = new ArrayList<BenchmarkValue>(batchSize);
+		for (Long id : writtenIds) {
+			values.add(createValue(id, 1));
+		}
+
+		longIdDatabase.put(values);
+	}
+
+	@Benchmark
+	public void putAndRemoveSingle(ThreadState state)
+			throws DatabaseException {
+		Long id = state.nextNewId();
+		longIdDatabase.put(createValue(id, 0));
+		longIdDatabase.remove(id);
+	}
+
+	@Benchmark
+	public void putAndRemoveBatch(ThreadState state) throws DatabaseException {
+		List<Long> newIds = state.nextNewIds(batchSize);
+		List<BenchmarkValue> values = new ArrayList<BenchmarkValue>(batchSize);
+		for (Long id : newIds) {
+			values.add(createValue(id, 0));
+		}
+
+		longIdDatabase.put(values);
+		longIdDatabase.remove(newIds);
+	}
+
+	@Benchmark
+	public boolean exists(ThreadState state) throws DatabaseException {
+		return longIdDatabase.exists(state.nextExistingId(this));
+	}
+
+	@Benchmark
+	public void getExistingIds(ThreadState state, Blackhole blackhole)
+			throws DatabaseException {
+		for (Long id : longIdDatabase.getExistingIds(mixedIds)) {
+			blackhole.consume(id);
+		}
+	}
+
+	@Benchmark
+	public void getPages(ThreadState state, Blackhole blackhole)
+			throws DatabaseException {
+		consumePages(longIdDatabase, blackhole);
+	}
+
+	@Benchmark
+	public BenchmarkStringValue getSingleWithStringId(ThreadState state)
+			throws IdNotFoundException, DatabaseException {
+		return stringIdDatabase.get(state.nextExistingStringId(this));
+	}
+
+	@Benchmark
+	public void getBatchWithStringIds(ThreadState state, Blackhole blackhole)
+			throws DatabaseException {
+		for (BenchmarkStringValue value : stringIdDatabase.get(stringBatchIds)) {
+			blackhole.consume(value);
+		}
+	}
+
+	@Benchmark
+	public void putSingleWithStringId(ThreadState state)
+			throws DatabaseException {
+		stringIdDatabase.put(createStringValue(
+				state.nextWrittenStringId(this), 1));
+	}
+
+	@Benchmark
+	public void putBatchWithStringIds(ThreadState state)
+			throws DatabaseException {
+		List<BenchmarkStringValue> values = new ArrayList<BenchmarkStringValue>(
+				batchSize);
+		for (String id : stringWrittenIds) {
+			values.add(createStringValue(id, 1));
+		}
+
+		stringIdDatabase.put(values);
+	}
+
+	@Benchmark
+	public void putAndRemoveSingleWithStringId(ThreadState state)
+			throws DatabaseException {
+		String id = state.nextNewStringId();
+		stringIdDatabase.put(createStringValue(id, 0));
+		stringIdDatabase.remove(id);
+	}
+
+	@Benchmark
+	public void putAndRemoveBatchWithStringIds(ThreadState state)
+			throws DatabaseException {
+		List<String> newIds = state.nextNewStringIds(batchSize);
+		List<BenchmarkStringValue> values = new ArrayList<BenchmarkStringValue>(
+				batchSize);
+		for (String id : newIds) {
+			values.add(createStringValue(id, 0));
+		}
+
+		stringIdDatabase.put(values);
+		stringIdDatabase.remove(newIds);
+	}
+
+	@Benchmark
+	public boolean existsWithStringId(ThreadState state)
+			throws DatabaseException {
+		return stringIdDatabase.exists(state.nextExistingStringId(this));
+	}
+
+	@Benchmark
+	public void getExistingIdsWithStringIds(ThreadState state,
+			Blackhole blackhole) throws DatabaseException {
+		for (String id : stringIdDatabase.getExistingIds(stringMixedIds)) {
+			blackhole.consume(id);
+		}
+	}
+
+	@Benchmark
+	public void getPagesWithStringIds(ThreadState state, Blackhole blackhole)
+			throws DatabaseException {
+		consumePages(stringIdDatabase, blackhole);
+	}
+
+	@Benchmark
+	@Threads(NUMBER_OF_CONTENDING_THREADS)
+	public BenchmarkValue updateContended(ThreadState state)
+			throws IllegalUpdateException, DatabaseException {
+		return longIdDatabase.update(contendedId,
+				new BenchmarkLongIdDatabase.Updater<BenchmarkValue>() {
+					@Override
+					public BenchmarkValue update(BenchmarkValue value) {
+						return new BenchmarkValue(value.getId(), value
+								.getName(), value.getCount() + 1, value
+								.getDescription());
+					}
+				});
+	}
+
+	@Benchmark
+	public Entity toEntity() {
+		return longIdDatabase.toEntity(value);
+	}
+
+	@Benchmark
+	public BenchmarkValue toValue() {
+		return longIdDatabase.toValue(entity);
+	}
+
+	@Benchmark
+	public Entity toEntityWithCodec() {
+		return stringIdDatabase.toEntity(stringValue);
+	}
+
+	@Benchmark
+	public BenchmarkStringValue toValueWithCodec() {
+		return stringIdDatabase.toValue(stringEntity);
+	}
+
+	private void consumePages(Database<?, ?> database, Blackhole blackhole)
+			throws DatabaseException {
+		String cursor = null;
+		for (int i = 0; i < 5; i++) {
+			Page<?> page = database.get(pageSize, cursor);
+			for (Object value : page) {
+				blackhole.consume(value);
+			}
+
+			if (!page.hasNext()) {
+				break;
+			}
+			cursor = page.getEndCursor();
+		}
+	}
+
+	private static BenchmarkValue createValue(Long id, long count) {
+		return new BenchmarkValue(id, "value" + count, count, DESCRIPTION);
+	}
+
+	private static BenchmarkStringValue createStringValue(String id, long count) {
+		return new BenchmarkStringValue(id, "value" + count, count,
+				DESCRIPTION);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		String result = args.length > 0 ? args[0] : "bench_output.json";
+
+		Options options = new OptionsBuilder()
+				.include(DatabaseBenchmark.class.getSimpleName())
+				.resultFormat(ResultFormatType.JSON).result(result).build();
+
+		new Runner(options).run();
+	}
+}
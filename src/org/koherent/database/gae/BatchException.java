@@ -0,0 +1,46 @@
+package org.koherent.database.gae;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.koherent.database.DatabaseException;
+
+public class BatchException extends DatabaseException {
+	private static final long serialVersionUID = 1L;
+
+	private List<Failure> failures;
+
+	public BatchException(List<Failure> failures) {
+		super(failures.get(0).getCause());
+		this.failures = Collections.unmodifiableList(failures);
+	}
+
+	public List<Failure> getFailures() {
+		return failures;
+	}
+
+	public static class Failure {
+		private int fromIndex;
+		private List<?> items;
+		private Throwable cause;
+
+		public Failure(int fromIndex, List<?> items, Throwable cause) {
+			super();
+			this.fromIndex = fromIndex;
+			this.items = items;
+			this.cause = cause;
+		}
+
+		public int getFromIndex() {
+			return fromIndex;
+		}
+
+		public List<?> getItems() {
+			return items;
+		}
+
+		public Throwable getCause() {
+			return cause;
+		}
+	}
+}
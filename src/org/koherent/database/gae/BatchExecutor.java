@@ -0,0 +1,99 @@
+package org.koherent.database.gae;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// Failures are reported as a BatchException whatever the number of batches.
+// If 'failFast' is true, the batches are executed one after another and the
+// first runtime exception is rethrown as it is instead, which suits
+// transactions since nothing is applied when one of the batches fails.
+class BatchExecutor {
+	private int maxConcurrency;
+	private ExecutorService executor;
+	private boolean failFast;
+
+	public BatchExecutor(int maxConcurrency, ExecutorService executor,
+			boolean failFast) {
+		super();
+		this.maxConcurrency = maxConcurrency;
+		this.executor = executor;
+		this.failFast = failFast;
+	}
+
+	public <T, R> List<R> execute(List<T> items, int batchSize,
+			final Batch<T, R> batch) throws BatchException {
+		List<List<T>> partitions = Database.partition(items, batchSize);
+
+		List<List<R>> partialResults = new ArrayList<List<R>>();
+		List<BatchException.Failure> failures = new ArrayList<BatchException.Failure>();
+
+		if (maxConcurrency <= 1 || executor == null || failFast
+				|| partitions.size() <= 1) {
+			for (int i = 0; i < partitions.size(); i++) {
+				List<T> partition = partitions.get(i);
+				try {
+					partialResults.add(batch.execute(partition));
+				} catch (RuntimeException e) {
+					if (failFast) {
+						throw e;
+					}
+					partialResults.add(null);
+					failures.add(new BatchException.Failure(i * batchSize,
+							partition, e));
+				} catch (Exception e) {
+					partialResults.add(null);
+					failures.add(new BatchException.Failure(i * batchSize,
+							partition, e));
+					if (failFast) {
+						break;
+					}
+				}
+			}
+		} else {
+			List<Future<List<R>>> futures = new ArrayList<Future<List<R>>>();
+			for (final List<T> partition : partitions) {
+				futures.add(executor.submit(new Callable<List<R>>() {
+					@Override
+					public List<R> call() throws Exception {
+						return batch.execute(partition);
+					}
+				}));
+			}
+
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					partialResults.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					partialResults.add(null);
+					failures.add(new BatchException.Failure(i * batchSize,
+							partitions.get(i), e.getCause()));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					futures.get(i).cancel(true);
+					partialResults.add(null);
+					failures.add(new BatchException.Failure(i * batchSize,
+							partitions.get(i), e));
+				}
+			}
+		}
+
+		if (!failures.isEmpty()) {
+			throw new BatchException(failures);
+		}
+
+		List<R> results = new ArrayList<R>();
+		for (List<R> partialResult : partialResults) {
+			results.addAll(partialResult);
+		}
+
+		return results;
+	}
+
+	public interface Batch<T, R> {
+		public List<R> execute(List<T> items) throws Exception;
+	}
+}
@@ -0,0 +1,32 @@
+package org.koherent.database.gae;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.koherent.database.DatabaseException;
+
+public class BatchUpdateException extends DatabaseException {
+	private static final long serialVersionUID = 1L;
+
+	private Map<?, ?> updatedValues;
+	private Map<?, Throwable> failures;
+
+	public BatchUpdateException(Map<?, ?> updatedValues,
+			Map<?, Throwable> failures) {
+		super(failures.values().iterator().next());
+		this.updatedValues = Collections.unmodifiableMap(updatedValues);
+		this.failures = Collections.unmodifiableMap(failures);
+	}
+
+	// The new values of the ids whose transactions were committed, which
+	// are null for the removed ones.
+	public Map<?, ?> getUpdatedValues() {
+		return updatedValues;
+	}
+
+	// The causes of the ids whose transactions were rolled back. All the ids
+	// in a transaction share its cause.
+	public Map<?, Throwable> getFailures() {
+		return failures;
+	}
+}
@@ -0,0 +1,120 @@
+package org.koherent.database.gae;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.appengine.api.datastore.Key;
+
+public class BloomFilter {
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final int numberOfBits;
+	private final int numberOfHashFunctions;
+	private final AtomicLongArray bits;
+	private volatile boolean built;
+
+	public BloomFilter(int expectedNumberOfKeys, double falsePositiveRate) {
+		super();
+		if (expectedNumberOfKeys <= 0) {
+			throw new IllegalArgumentException(
+					"'expectedNumberOfKeys' must be positive.");
+		}
+		if (falsePositiveRate <= 0.0 || falsePositiveRate >= 1.0) {
+			throw new IllegalArgumentException(
+					"'falsePositiveRate' must be between 0 and 1.");
+		}
+
+		double ln2 = Math.log(2);
+		long optimalNumberOfBits = (long) Math.ceil(-expectedNumberOfKeys
+				* Math.log(falsePositiveRate) / (ln2 * ln2));
+		this.numberOfBits = (int) Math.min(Integer.MAX_VALUE - 63,
+				Math.max(64, optimalNumberOfBits));
+		this.numberOfHashFunctions = Math.max(1, (int) Math
+				.round((double) numberOfBits / expectedNumberOfKeys * ln2));
+		this.bits = new AtomicLongArray((numberOfBits + 63) / 64);
+	}
+
+	public int getNumberOfBits() {
+		return numberOfBits;
+	}
+
+	public int getNumberOfHashFunctions() {
+		return numberOfHashFunctions;
+	}
+
+	public boolean isBuilt() {
+		return built;
+	}
+
+	public void markBuilt() {
+		built = true;
+	}
+
+	public void clear() {
+		built = false;
+		for (int i = 0; i < bits.length(); i++) {
+			bits.set(i, 0L);
+		}
+	}
+
+	public void put(Key key) {
+		long hash = hash(key);
+		int hash1 = (int) hash;
+		int hash2 = (int) (hash >>> 32) | 1;
+
+		for (int i = 0; i < numberOfHashFunctions; i++) {
+			setBit(index(hash1 + i * hash2));
+		}
+	}
+
+	public boolean mightContain(Key key) {
+		long hash = hash(key);
+		int hash1 = (int) hash;
+		int hash2 = (int) (hash >>> 32) | 1;
+
+		for (int i = 0; i < numberOfHashFunctions; i++) {
+			if (!getBit(index(hash1 + i * hash2))) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private int index(int combinedHash) {
+		return (combinedHash & Integer.MAX_VALUE) % numberOfBits;
+	}
+
+	private void setBit(int index) {
+		int wordIndex = index >>> 6;
+		long mask = 1L << index;
+		for (;;) {
+			long word = bits.get(wordIndex);
+			if ((word & mask) != 0 || bits.compareAndSet(wordIndex, word,
+					word | mask)) {
+				return;
+			}
+		}
+	}
+
+	private boolean getBit(int index) {
+		return (bits.get(index >>> 6) & (1L << index)) != 0;
+	}
+
+	private static long hash(Key key) {
+		String string = key.toString();
+
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = 0; i < string.length(); i++) {
+			hash ^= string.charAt(i);
+			hash *= FNV_PRIME;
+		}
+
+		// Mixes the bits because FNV-1a leaves the upper half weakly mixed.
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+
+		return hash;
+	}
+}
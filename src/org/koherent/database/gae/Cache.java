@@ -0,0 +1,24 @@
+package org.koherent.database.gae;
+
+import java.util.Collection;
+import java.util.Map;
+
+public interface Cache<K, T> {
+	public Map<K, T> getAll(Collection<K> keys);
+
+	public void putAll(Map<K, T> values);
+
+	public void removeAll(Collection<K> keys);
+
+	// Reserves the keys before loading their values, so that
+	// 'putAllIfReserved' does not cache values which were overwritten or
+	// removed after being loaded.
+	public Map<K, Object> reserveAll(Collection<K> keys);
+
+	public void putAllIfReserved(Map<K, T> values,
+			Map<K, Object> reservations);
+
+	public long getHitCount();
+
+	public long getMissCount();
+}
@@ -0,0 +1,172 @@
+package org.koherent.database.gae;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+
+public class CompositeIndex {
+	private boolean ancestor;
+	private List<SortPredicate> properties;
+	private int numberOfEqualityProperties;
+
+	public CompositeIndex(boolean ancestor, SortPredicate... properties) {
+		this(ancestor, Arrays.asList(properties));
+	}
+
+	public CompositeIndex(boolean ancestor, List<SortPredicate> properties) {
+		this(ancestor, properties, 0);
+	}
+
+	private CompositeIndex(boolean ancestor, List<SortPredicate> properties,
+			int numberOfEqualityProperties) {
+		super();
+		this.ancestor = ancestor;
+		this.properties = Collections
+				.unmodifiableList(new ArrayList<SortPredicate>(properties));
+		this.numberOfEqualityProperties = numberOfEqualityProperties;
+	}
+
+	public boolean isAncestor() {
+		return ancestor;
+	}
+
+	public List<SortPredicate> getProperties() {
+		return properties;
+	}
+
+	public boolean serves(CompositeIndex requiredIndex) {
+		List<SortPredicate> requiredProperties = requiredIndex.properties;
+		int prefixLength = requiredIndex.numberOfEqualityProperties;
+
+		if (ancestor != requiredIndex.ancestor
+				|| properties.size() != requiredProperties.size()) {
+			return false;
+		}
+
+		Set<String> propertyNames = new HashSet<String>();
+		Set<String> requiredPropertyNames = new HashSet<String>();
+		for (int i = 0; i < prefixLength; i++) {
+			propertyNames.add(properties.get(i).getPropertyName());
+			requiredPropertyNames.add(requiredProperties.get(i)
+					.getPropertyName());
+		}
+		if (!propertyNames.equals(requiredPropertyNames)) {
+			return false;
+		}
+
+		for (int i = prefixLength; i < properties.size(); i++) {
+			if (!equals(properties.get(i), requiredProperties.get(i))) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public static SortPredicate ascending(String propertyName) {
+		return new SortPredicate(propertyName, SortDirection.ASCENDING);
+	}
+
+	public static SortPredicate descending(String propertyName) {
+		return new SortPredicate(propertyName, SortDirection.DESCENDING);
+	}
+
+	public static CompositeIndex getRequiredIndex(boolean ancestor,
+			List<FilterPredicate> filters, List<SortPredicate> sorts)
+			throws IllegalArgumentException {
+		Set<String> propertyNames = new HashSet<String>();
+		Set<String> equalityPropertyNames = new LinkedHashSet<String>();
+		String inequalityPropertyName = null;
+
+		for (FilterPredicate filter : filters) {
+			String propertyName = filter.getPropertyName();
+			propertyNames.add(propertyName);
+
+			FilterOperator operator = filter.getOperator();
+			if (operator == FilterOperator.EQUAL
+					|| operator == FilterOperator.IN) {
+				equalityPropertyNames.add(propertyName);
+				continue;
+			}
+
+			if (inequalityPropertyName != null
+					&& !inequalityPropertyName.equals(propertyName)) {
+				throw new IllegalArgumentException(
+						"Inequality filters are allowed on only one property: '"
+								+ inequalityPropertyName + "' and '"
+								+ propertyName + "'.");
+			}
+			inequalityPropertyName = propertyName;
+		}
+
+		List<SortPredicate> orderedProperties = new ArrayList<SortPredicate>();
+		for (SortPredicate sort : sorts) {
+			propertyNames.add(sort.getPropertyName());
+			if (!equalityPropertyNames.contains(sort.getPropertyName())) {
+				orderedProperties.add(sort);
+			}
+		}
+
+		if (inequalityPropertyName != null) {
+			if (orderedProperties.isEmpty()) {
+				orderedProperties.add(ascending(inequalityPropertyName));
+			} else if (!orderedProperties.get(0).getPropertyName()
+					.equals(inequalityPropertyName)) {
+				throw new IllegalArgumentException("The property '"
+						+ inequalityPropertyName
+						+ "' with an inequality filter must be sorted first.");
+			}
+		}
+
+		int lastIndex = orderedProperties.size() - 1;
+		if (lastIndex >= 0
+				&& equals(orderedProperties.get(lastIndex),
+						ascending(Entity.KEY_RESERVED_PROPERTY))) {
+			orderedProperties.remove(lastIndex);
+		}
+		propertyNames.remove(Entity.KEY_RESERVED_PROPERTY);
+
+		if (propertyNames.isEmpty() || orderedProperties.isEmpty()
+				|| (!ancestor && propertyNames.size() == 1)) {
+			return null;
+		}
+
+		List<SortPredicate> indexProperties = new ArrayList<SortPredicate>();
+		for (String propertyName : equalityPropertyNames) {
+			indexProperties.add(ascending(propertyName));
+		}
+		indexProperties.addAll(orderedProperties);
+
+		return new CompositeIndex(ancestor, indexProperties,
+				equalityPropertyNames.size());
+	}
+
+	private static boolean equals(SortPredicate sort1, SortPredicate sort2) {
+		return sort1.getPropertyName().equals(sort2.getPropertyName())
+				&& sort1.getDirection() == sort2.getDirection();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("ancestor: ").append(ancestor ? "yes" : "no");
+		for (SortPredicate property : properties) {
+			builder.append(", ")
+					.append(property.getPropertyName())
+					.append(property.getDirection() == SortDirection.ASCENDING ? " asc"
+							: " desc");
+		}
+
+		return builder.toString();
+	}
+}
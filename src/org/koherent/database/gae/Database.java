@@ -1,13 +1,28 @@
 package org.koherent.database.gae;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.koherent.database.AbstractDatabase;
 import org.koherent.database.DatabaseException;
@@ -16,23 +31,63 @@ import org.koherent.database.IdNotFoundException;
 import org.koherent.database.IllegalUpdateException;
 import org.koherent.database.Value;
 
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PropertyProjection;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
 
 public abstract class Database<I, V extends Value<I>> extends
 		AbstractDatabase<I, V> implements org.koherent.database.Database<I, V> {
 	protected static final int NUMBER_OF_MAX_RETRIES = 3;
+	protected static final int MAX_KEYS_PER_GET = 1000;
+	protected static final int DEFAULT_BATCH_SIZE = 500;
+	protected static final int DEFAULT_MAX_CONCURRENT_BATCHES = 4;
+	protected static final int SCATTER_OVERSAMPLING_FACTOR = 32;
+	// The number of entities the datastore returns per query batch by
+	// default.
+	protected static final int DEFAULT_QUERY_BATCH_SIZE = 20;
+	protected static final int MAX_ENTITY_GROUPS_PER_TRANSACTION = 25;
+	private static final long THREAD_KEEP_ALIVE_MILLIS = 1000;
+	private static final ThreadLocal<Boolean> IN_BATCH_THREAD = new ThreadLocal<Boolean>();
+
+	private final MetricsSink metricsSink = new HistogramMetricsSink();
+	private final RetryPolicy retryPolicy = new RetryPolicy(
+			NUMBER_OF_MAX_RETRIES, RetryPolicy.DEFAULT_INITIAL_BACKOFF_MILLIS,
+			RetryPolicy.DEFAULT_MAX_BACKOFF_MILLIS,
+			RetryPolicy.DEFAULT_MAX_ELAPSED_MILLIS, RetryPolicy.DEFAULT_JITTER);
+	// Keys written in transactions, which are evicted again from the caches
+	// after the transactions are committed.
+	private final Map<Transaction, List<Key>> keysWrittenInTransactions = Collections
+			.synchronizedMap(new WeakHashMap<Transaction, List<Key>>());
+	private final Object flushLock = new Object();
+	private final Object flushScheduleLock = new Object();
+	private ScheduledThreadPoolExecutor flushScheduler;
+	private ScheduledFuture<?> scheduledFlush;
+	private final Object batchExecutorLock = new Object();
+	private ThreadPoolExecutor batchExecutorService;
+	private volatile BloomFilter bloomFilter;
+	private volatile BloomFilter rebuildingBloomFilter;
+	private final Object bloomFilterLock = new Object();
 
 	public boolean exists(I id) throws DatabaseException {
-		return exists(DatastoreServiceFactory.getDatastoreService(), id);
+		return exists(getDatastoreService(), id);
 	}
 
 	protected boolean exists(DatastoreService datastore, I id)
@@ -42,15 +97,38 @@ public abstract class Database<I, V extends Value<I>> extends
 
 	protected boolean exists(DatastoreService datastore,
 			Transaction transaction, I id) throws DatabaseException {
-		return getExistingIds(datastore, transaction, Collections.singleton(id))
-				.iterator().hasNext();
+		if (transaction == null) {
+			WriteBehindQueue.Write<V> write = getPendingWrite(id);
+			if (write != null) {
+				return !write.isRemoval();
+			}
+		}
+
+		Key key = toKey(id);
+		Map<Key, Object> absenceReservations = null;
+		if (transaction == null) {
+			if (isKnownToBeAbsent(key)) {
+				return false;
+			}
+			absenceReservations = reserveAbsentKeys(Collections
+					.singletonList(key));
+		}
+
+		try {
+			datastoreGet(datastore, transaction, key);
+			return true;
+		} catch (EntityNotFoundException e) {
+			recordAbsentKeys(Collections.singletonList(key),
+					absenceReservations);
+
+			return false;
+		}
 	}
 
 	@Override
 	public Iterable<? extends I> getExistingIds(Iterable<? extends I> ids)
 			throws DatabaseException {
-		return getExistingIds(DatastoreServiceFactory.getDatastoreService(),
-				ids);
+		return getExistingIds(getDatastoreService(), ids);
 	}
 
 	protected Iterable<? extends I> getExistingIds(DatastoreService datastore,
@@ -61,20 +139,55 @@ public abstract class Database<I, V extends Value<I>> extends
 	protected Iterable<? extends I> getExistingIds(DatastoreService datastore,
 			Transaction transaction, Iterable<? extends I> ids)
 			throws DatabaseException {
-		Query query = new Query(getKind());
-		query.setFilter(new Query.FilterPredicate(Entity.KEY_RESERVED_PROPERTY,
-				FilterOperator.IN, idsToKeys(ids)));
+		Set<I> existingIds = new LinkedHashSet<I>();
 
-		return searchIds(datastore, transaction, query);
+		List<Key> keys = toKeyList(idsToKeys(ids));
+		Map<Key, Object> absenceReservations = null;
+		if (transaction == null) {
+			keys = removeKeysKnownToBeAbsent(keys);
+			absenceReservations = reserveAbsentKeys(keys);
+		}
+
+		for (List<Key> partialKeys : partition(keys, MAX_KEYS_PER_GET)) {
+			existingIds.addAll(keyExists(datastore, transaction, partialKeys));
+		}
+
+		if (transaction == null) {
+			List<Key> absentKeys = new ArrayList<Key>();
+			for (Key key : keys) {
+				if (!existingIds.contains(toId(key))) {
+					absentKeys.add(key);
+				}
+			}
+			recordAbsentKeys(absentKeys, absenceReservations);
+		}
+
+		WriteBehindQueue<I, V> queue = getWriteBehindQueue();
+		if (transaction != null || queue == null || queue.isEmpty()) {
+			return existingIds;
+		}
+
+		Set<I> pendingExistingIds = new LinkedHashSet<I>();
+		for (I id : ids) {
+			WriteBehindQueue.Write<V> write = queue.get(id);
+			if (write == null ? existingIds.contains(id) : !write.isRemoval()) {
+				pendingExistingIds.add(id);
+			}
+		}
+
+		return pendingExistingIds;
 	}
 
 	protected Set<? extends I> keyExists(DatastoreService datastore,
 			Transaction transaction, Iterable<Key> keys) {
-		Set<I> existingIds = new HashSet<I>();
+		Set<I> existingIds = new LinkedHashSet<I>();
 
-		Map<Key, Entity> keysToEntities = datastore.get(transaction, keys);
-		for (Key key : keysToEntities.keySet()) {
-			existingIds.add(toId(key));
+		Map<Key, Entity> keysToEntities = datastoreGet(datastore, transaction,
+				keys);
+		for (Key key : keys) {
+			if (keysToEntities.containsKey(key)) {
+				existingIds.add(toId(key));
+			}
 		}
 
 		return existingIds;
@@ -82,7 +195,7 @@ public abstract class Database<I, V extends Value<I>> extends
 
 	@Override
 	public Iterable<? extends I> getIds(int limit) throws DatabaseException {
-		return getIds(DatastoreServiceFactory.getDatastoreService(), limit);
+		return getIds(getDatastoreService(), limit);
 	}
 
 	protected Iterable<? extends I> getIds(DatastoreService datastore, int limit)
@@ -98,8 +211,7 @@ public abstract class Database<I, V extends Value<I>> extends
 	@Override
 	public Iterable<? extends I> getIds(int limit, int offset)
 			throws DatabaseException {
-		return getIds(DatastoreServiceFactory.getDatastoreService(), limit,
-				offset);
+		return getIds(getDatastoreService(), limit, offset);
 	}
 
 	protected Iterable<? extends I> getIds(DatastoreService datastore,
@@ -115,9 +227,28 @@ public abstract class Database<I, V extends Value<I>> extends
 				limitAndOffset(limit, offset));
 	}
 
+	public Page<? extends I> getIds(int limit, String startCursor)
+			throws DatabaseException {
+		return getIds(getDatastoreService(), limit, startCursor);
+	}
+
+	protected Page<? extends I> getIds(DatastoreService datastore, int limit,
+			String startCursor) throws DatabaseException {
+		return getIds(datastore, null, limit, startCursor);
+	}
+
+	protected Page<? extends I> getIds(DatastoreService datastore,
+			Transaction transaction, int limit, String startCursor)
+			throws DatabaseException {
+		Query query = new Query(getKind());
+
+		return searchIdPage(datastore, transaction, query,
+				limitAndCursor(limit, startCursor));
+	}
+
 	@Override
 	public Iterable<? extends I> getAllIds() throws DatabaseException {
-		return getAllIds(DatastoreServiceFactory.getDatastoreService());
+		return getAllIds(getDatastoreService());
 	}
 
 	protected Iterable<? extends I> getAllIds(DatastoreService datastore)
@@ -134,7 +265,7 @@ public abstract class Database<I, V extends Value<I>> extends
 
 	@Override
 	public V get(I id) throws IdNotFoundException, DatabaseException {
-		return get(DatastoreServiceFactory.getDatastoreService(), id);
+		return get(getDatastoreService(), id);
 	}
 
 	protected V get(DatastoreService datastore, I id)
@@ -144,18 +275,68 @@ public abstract class Database<I, V extends Value<I>> extends
 
 	protected V get(DatastoreService datastore, Transaction transaction, I id)
 			throws IdNotFoundException, DatabaseException {
+		if (transaction == null) {
+			WriteBehindQueue.Write<V> write = getPendingWrite(id);
+			if (write != null) {
+				if (write.isRemoval()) {
+					throw new IdNotFoundException(id,
+							new EntityNotFoundException(toKey(id)));
+				}
+
+				return write.getValue();
+			}
+		}
+
+		Cache<I, V> cache = getValueCache();
+		if (cache != null && transaction == null) {
+			V value = cache.getAll(Collections.singleton(id)).get(id);
+			recordCacheAccess(MetricsSink.VALUE_CACHE, value == null ? 0 : 1,
+					value == null ? 1 : 0);
+			if (value != null) {
+				return copyValue(value);
+			}
+		}
+
+		Key key = toKey(id);
+		Map<Key, Object> absenceReservations = null;
+		if (transaction == null) {
+			if (isKnownToBeAbsent(key)) {
+				throw new IdNotFoundException(id, new EntityNotFoundException(
+						key));
+			}
+			absenceReservations = reserveAbsentKeys(Collections
+					.singletonList(key));
+		}
+
+		Map<I, Object> reservations = null;
+		if (cache != null && transaction == null) {
+			reservations = cache.reserveAll(Collections.singleton(id));
+		}
+
+		V value;
 		try {
-			Entity entity = datastore.get(transaction, toKey(id));
-			return toValue(entity);
+			Entity entity = datastoreGet(datastore, transaction, key);
+			value = decode(entity);
 		} catch (EntityNotFoundException e) {
+			recordAbsentKeys(Collections.singletonList(key),
+					absenceReservations);
+
 			throw new IdNotFoundException(id, e);
 		}
+
+		if (reservations != null) {
+			cache.putAllIfReserved(
+					Collections.singletonMap(id, copyValue(value)),
+					reservations);
+		}
+
+		return value;
 	}
 
 	@Override
 	public Iterable<? extends V> get(Iterable<? extends I> ids)
 			throws DatabaseException {
-		return get(DatastoreServiceFactory.getDatastoreService(), ids);
+		return get(getDatastoreService(), ids);
 	}
 
 	protected Iterable<? extends V> get(DatastoreService datastore,
@@ -166,17 +347,103 @@ public abstract class Database<I, V extends Value<I>> extends
 	protected Iterable<? extends V> get(DatastoreService datastore,
 			Transaction transaction, Iterable<? extends I> ids)
 			throws DatabaseException {
-		return getByKeys(datastore, transaction, idsToKeys(ids));
+		WriteBehindQueue<I, V> queue = getWriteBehindQueue();
+		if (transaction != null || queue == null || queue.isEmpty()) {
+			return getThroughValueCache(datastore, transaction, ids);
+		}
+
+		List<I> idList = new ArrayList<I>();
+		for (I id : ids) {
+			idList.add(id);
+		}
+
+		List<V> values = new ArrayList<V>();
+		Iterator<? extends V> valueIterator = getThroughValueCache(datastore,
+				transaction, idList).iterator();
+		for (I id : idList) {
+			V value = valueIterator.next();
+			WriteBehindQueue.Write<V> write = queue.get(id);
+			if (write == null) {
+				values.add(value);
+			} else {
+				values.add(write.isRemoval() ? toValue(null) : write
+						.getValue());
+			}
+		}
+
+		return values;
 	}
 
-	protected Iterable<? extends V> getByKeys(DatastoreService datastore,
-			Transaction transaction, Iterable<Key> keys)
-			throws DatabaseException {
-		Map<Key, Entity> entities = datastore.get(transaction, keys);
+	private Iterable<? extends V> getThroughValueCache(
+			DatastoreService datastore, Transaction transaction,
+			Iterable<? extends I> ids) throws DatabaseException {
+		Cache<I, V> cache = getValueCache();
+		if (cache == null || transaction != null) {
+			return getByKeys(datastore, transaction, idsToKeys(ids));
+		}
+
+		List<I> idList = new ArrayList<I>();
+		for (I id : ids) {
+			idList.add(id);
+		}
+
+		Map<I, V> cachedValues = cache.getAll(idList);
+
+		List<I> missingIds = new ArrayList<I>();
+		for (I id : idList) {
+			if (!cachedValues.containsKey(id)) {
+				missingIds.add(id);
+			}
+		}
+		recordCacheAccess(MetricsSink.VALUE_CACHE,
+				idList.size() - missingIds.size(), missingIds.size());
+
+		Map<I, V> loadedValues = new HashMap<I, V>();
+		if (!missingIds.isEmpty()) {
+			Map<I, Object> reservations = cache.reserveAll(missingIds);
+			Iterator<? extends V> valueIterator = getByKeys(datastore,
+					transaction, idsToKeys(missingIds)).iterator();
+			Map<I, V> valuesToCache = new HashMap<I, V>();
+			for (I id : missingIds) {
+				V value = valueIterator.next();
+				loadedValues.put(id, value);
+				if (value != null) {
+					valuesToCache.put(id, copyValue(value));
+				}
+			}
+			cache.putAllIfReserved(valuesToCache, reservations);
+		}
+
+		List<V> values = new ArrayList<V>();
+		for (I id : idList) {
+			values.add(cachedValues.containsKey(id) ? copyValue(cachedValues
+					.get(id)) : loadedValues.get(id));
+		}
+
+		return values;
+	}
+
+	protected Iterable<? extends V> getByKeys(
+			final DatastoreService datastore, final Transaction transaction,
+			Iterable<Key> keys) throws DatabaseException {
+		List<Key> keyList = toKeyList(keys);
+
+		return createBatchExecutor(transaction).execute(keyList,
+				getBatchSize(), new BatchExecutor.Batch<Key, V>() {
+					@Override
+					public List<V> execute(List<Key> partialKeys) {
+						Map<Key, Entity> entities = datastoreGet(datastore,
+								transaction, partialKeys);
+
+						return toValues(partialKeys, entities);
+					}
+				});
+	}
 
+	protected List<V> toValues(Iterable<Key> keys, Map<Key, Entity> entities) {
 		List<V> values = new ArrayList<V>();
 		for (Key key : keys) {
-			values.add(toValue(entities.get(key)));
+			values.add(decode(entities.get(key)));
 		}
 
 		return values;
@@ -184,7 +451,7 @@ public abstract class Database<I, V extends Value<I>> extends
 
 	@Override
 	public Iterable<? extends V> get(int limit) throws DatabaseException {
-		return get(DatastoreServiceFactory.getDatastoreService(), limit);
+		return get(getDatastoreService(), limit);
 	}
 
 	protected Iterable<? extends V> get(DatastoreService datastore, int limit)
@@ -200,7 +467,7 @@ public abstract class Database<I, V extends Value<I>> extends
 	@Override
 	public Iterable<? extends V> get(int limit, int offset)
 			throws DatabaseException {
-		return get(DatastoreServiceFactory.getDatastoreService(), limit, offset);
+		return get(getDatastoreService(), limit, offset);
 	}
 
 	protected Iterable<? extends V> get(DatastoreService datastore, int limit,
@@ -215,9 +482,26 @@ public abstract class Database<I, V extends Value<I>> extends
 				limitAndOffset(limit, offset));
 	}
 
+	public Page<? extends V> get(int limit, String startCursor)
+			throws DatabaseException {
+		return get(getDatastoreService(), limit, startCursor);
+	}
+
+	protected Page<? extends V> get(DatastoreService datastore, int limit,
+			String startCursor) throws DatabaseException {
+		return get(datastore, null, limit, startCursor);
+	}
+
+	protected Page<? extends V> get(DatastoreService datastore,
+			Transaction transaction, int limit, String startCursor)
+			throws DatabaseException {
+		return searchPage(datastore, transaction, new Query(getKind()),
+				limitAndCursor(limit, startCursor));
+	}
+
 	@Override
 	public Iterable<? extends V> getAll() throws DatabaseException {
-		return getAll(DatastoreServiceFactory.getDatastoreService());
+		return getAll(getDatastoreService());
 	}
 
 	protected Iterable<? extends V> getAll(DatastoreService datastore)
@@ -230,229 +514,1731 @@ public abstract class Database<I, V extends Value<I>> extends
 		return search(datastore, transaction, new Query(getKind()));
 	}
 
-	@Override
-	public I add(V value) throws DuplicateIdException, DatabaseException {
-		return add(DatastoreServiceFactory.getDatastoreService(), value)
-				.getId();
+	public Iterable<? extends V> project(Iterable<String> propertyNames)
+			throws DatabaseException {
+		return project(propertyNames, false);
 	}
 
-	protected V add(DatastoreService datastore, V value)
-			throws DuplicateIdException, DatabaseException {
-		for (int retryCount = 0; true; retryCount++) {
-			Transaction transaction = datastore.beginTransaction();
-			try {
-				V newValue = add(datastore, transaction, value);
-				transaction.commit();
-
-				return newValue;
-			} catch (DatastoreFailureException e) {
-				throw new DatabaseException(e);
-			} catch (ConcurrentModificationException e) {
-				if (retryCount < NUMBER_OF_MAX_RETRIES) {
-					continue;
-				}
-
-				throw new DatabaseException(e);
-			} finally {
-				if (transaction.isActive()) {
-					transaction.rollback();
-				}
-			}
-		}
+	public Iterable<? extends V> project(Iterable<String> propertyNames,
+			boolean distinct) throws DatabaseException {
+		return project(getDatastoreService(), propertyNames, distinct);
 	}
 
-	protected V add(DatastoreService datastore, Transaction transaction, V value)
-			throws DuplicateIdException, DatabaseException {
-		I id = value.getId();
-		if (id != null) {
-			try {
-				get(datastore, transaction, id);
-				throw new DuplicateIdException(id);
-			} catch (IdNotFoundException e) {
-			}
-		}
-
-		return put(datastore, transaction, value);
+	protected Iterable<? extends V> project(DatastoreService datastore,
+			Iterable<String> propertyNames, boolean distinct)
+			throws DatabaseException {
+		return project(datastore, null, propertyNames, distinct);
 	}
 
-	@Override
-	public void put(V value) throws DatabaseException {
-		put(DatastoreServiceFactory.getDatastoreService(), value);
+	protected Iterable<? extends V> project(DatastoreService datastore,
+			Transaction transaction, Iterable<String> propertyNames,
+			boolean distinct) throws DatabaseException {
+		return searchPartialValues(datastore, transaction,
+				createProjectionQuery(propertyNames, distinct),
+				FetchOptions.Builder.withDefaults());
 	}
 
-	protected V put(DatastoreService datastore, V value)
+	public Page<? extends V> project(Iterable<String> propertyNames,
+			boolean distinct, int limit, String startCursor)
 			throws DatabaseException {
-		return put(datastore, null, value);
+		return project(getDatastoreService(), propertyNames, distinct, limit,
+				startCursor);
 	}
 
-	protected V put(DatastoreService datastore, Transaction transaction, V value)
-			throws DatabaseException {
-		Key key = datastorePut(datastore, transaction, value);
-		if (value.getId() != null) {
-			return value;
-		}
-
-		return assignId(value, toId(key));
+	protected Page<? extends V> project(DatastoreService datastore,
+			Iterable<String> propertyNames, boolean distinct, int limit,
+			String startCursor) throws DatabaseException {
+		return project(datastore, null, propertyNames, distinct, limit,
+				startCursor);
 	}
 
-	@Override
-	public void put(Iterable<? extends V> values) throws DatabaseException {
-		put(DatastoreServiceFactory.getDatastoreService(), values);
+	protected Page<? extends V> project(DatastoreService datastore,
+			Transaction transaction, Iterable<String> propertyNames,
+			boolean distinct, int limit, String startCursor)
+			throws DatabaseException {
+		return searchPartialPage(datastore, transaction,
+				createProjectionQuery(propertyNames, distinct),
+				limitAndCursor(limit, startCursor));
 	}
 
-	protected List<Key> put(DatastoreService datastore,
-			Iterable<? extends V> values) throws DatabaseException {
-		return put(datastore, null, values);
+	public PrefetchingIterator<Entity, V> prefetch(int chunkSize,
+			int numberOfPrefetchedChunks) {
+		return prefetch(getDatastoreService(), null,
+				new Query(getKind()), chunkSize, numberOfPrefetchedChunks);
 	}
 
-	protected List<Key> put(DatastoreService datastore,
-			Transaction transaction, Iterable<? extends V> values)
-			throws DatabaseException {
-		return datastorePut(datastore, transaction, values);
-	}
+	protected PrefetchingIterator<Entity, V> prefetch(
+			DatastoreService datastore, Transaction transaction, Query query,
+			int chunkSize, int numberOfPrefetchedChunks) {
+		Iterable<? extends Entity> entities = searchEntities(datastore,
+				transaction, query, chunkAndPrefetch(chunkSize));
 
-	@Override
-	public void remove(I id) throws DatabaseException {
-		remove(DatastoreServiceFactory.getDatastoreService(), id);
+		PrefetchingIterator<Entity, V> iterator = new PrefetchingIterator<Entity, V>(
+				entities.iterator(), chunkSize, numberOfPrefetchedChunks,
+				getThreadFactory()) {
+			@Override
+			protected V convert(Entity entity) {
+				return entity == null ? null : decode(entity);
+			}
+		};
+		iterator.start();
+
+		return iterator;
 	}
 
-	protected void remove(DatastoreService datastore, I id)
-			throws DatabaseException {
-		remove(datastore, null, id);
+	public PrefetchingIterator<Entity, I> prefetchIds(int chunkSize,
+			int numberOfPrefetchedChunks) {
+		return prefetchIds(getDatastoreService(), null, new Query(getKind()),
+				chunkSize, numberOfPrefetchedChunks);
 	}
 
-	protected void remove(DatastoreService datastore, Transaction transaction,
-			I id) throws DatabaseException {
-		datastoreDelete(datastore, transaction, id);
+	protected PrefetchingIterator<Entity, I> prefetchIds(
+			DatastoreService datastore, Transaction transaction, Query query,
+			int chunkSize, int numberOfPrefetchedChunks) {
+		query.setKeysOnly();
+		Iterable<? extends Entity> entities = searchEntities(datastore,
+				transaction, query, chunkAndPrefetch(chunkSize));
+
+		PrefetchingIterator<Entity, I> iterator = new PrefetchingIterator<Entity, I>(
+				entities.iterator(), chunkSize, numberOfPrefetchedChunks,
+				getThreadFactory()) {
+			@Override
+			protected I convert(Entity entity) {
+				return entity == null ? null : toId(entity.getKey());
+			}
+		};
+		iterator.start();
+
+		return iterator;
 	}
 
-	@Override
-	public void remove(Iterable<? extends I> ids) throws DatabaseException {
-		remove(DatastoreServiceFactory.getDatastoreService(), ids);
+	protected FetchOptions chunkAndPrefetch(int chunkSize) {
+		return FetchOptions.Builder.withChunkSize(chunkSize).prefetchSize(
+				chunkSize);
 	}
 
-	protected void remove(DatastoreService datastore, Iterable<? extends I> ids)
-			throws DatabaseException {
-		remove(datastore, null, ids);
+	public List<ScanShard> split(int numberOfShards) throws DatabaseException {
+		return split(getDatastoreService(), numberOfShards);
 	}
 
-	protected void remove(DatastoreService datastore, Transaction transaction,
-			Iterable<? extends I> ids) throws DatabaseException {
+	protected List<ScanShard> split(DatastoreService datastore,
+			int numberOfShards) throws DatabaseException {
+		if (numberOfShards <= 0) {
+			throw new IllegalArgumentException(
+					"'numberOfShards' must be positive.");
+		}
+
+		Query query = new Query(getKind());
+		query.addSort(Entity.SCATTER_RESERVED_PROPERTY);
+		query.setKeysOnly();
+
+		List<Key> sampledKeys = new ArrayList<Key>();
 		try {
-			datastoreDelete(datastore, transaction, ids);
-		} catch (IllegalArgumentException | ConcurrentModificationException
-				| DatastoreFailureException e) {
+			for (Entity entity : searchEntityList(datastore, null, query,
+					FetchOptions.Builder.withLimit(numberOfShards
+							* SCATTER_OVERSAMPLING_FACTOR))) {
+				sampledKeys.add(entity.getKey());
+			}
+		} catch (IllegalArgumentException | DatastoreFailureException e) {
 			throw new DatabaseException(e);
 		}
-	}
+		Collections.sort(sampledKeys);
 
-	@Override
-	public void removeAll() throws DatabaseException {
-		removeAll(DatastoreServiceFactory.getDatastoreService());
+		List<Key> splitKeys = new ArrayList<Key>();
+		for (int i = 1; i < numberOfShards; i++) {
+			if (sampledKeys.isEmpty()) {
+				break;
+			}
+
+			Key splitKey = sampledKeys.get(i * sampledKeys.size()
+					/ numberOfShards);
+			if (splitKeys.isEmpty()
+					|| !splitKeys.get(splitKeys.size() - 1).equals(splitKey)) {
+				splitKeys.add(splitKey);
+			}
+		}
+
+		List<ScanShard> shards = new ArrayList<ScanShard>();
+		Key startKey = null;
+		for (Key splitKey : splitKeys) {
+			shards.add(new ScanShard(startKey, splitKey));
+			startKey = splitKey;
+		}
+		shards.add(new ScanShard(startKey, null));
+
+		return shards;
 	}
 
-	protected void removeAll(DatastoreService datastore)
+	public void scan(int numberOfShards, ScanCallback<? super V> callback)
 			throws DatabaseException {
-		removeAll(datastore, null);
+		DatastoreService datastore = getDatastoreService();
+		scan(datastore, split(datastore, numberOfShards), callback);
 	}
 
-	protected void removeAll(DatastoreService datastore, Transaction transaction)
+	public void scan(List<ScanShard> shards, ScanCallback<? super V> callback)
 			throws DatabaseException {
-		Query query = new Query(getKind());
-		query.setKeysOnly();
-
-		List<Key> keys = new ArrayList<Key>();
-		for (Entity entity : searchEntities(datastore, transaction, query, null)) {
-			keys.add(entity.getKey());
-		}
-
-		datastore.delete(transaction, keys);
+		scan(getDatastoreService(), shards, callback);
 	}
 
-	@Override
-	public V update(I id, Updater<V> updater) throws IllegalUpdateException,
-			DatabaseException {
-		return update(DatastoreServiceFactory.getDatastoreService(), id,
-				updater);
-	}
+	protected void scan(final DatastoreService datastore,
+			List<ScanShard> shards, final ScanCallback<? super V> callback)
+			throws DatabaseException {
+		List<ScanShard> remainingShards = new ArrayList<ScanShard>();
+		for (ScanShard shard : shards) {
+			if (!shard.isCompleted()) {
+				remainingShards.add(shard);
+			}
+		}
 
-	protected V update(DatastoreService datastore, I id, Updater<V> updater)
-			throws IllegalUpdateException, DatabaseException {
-		for (int retryCount = 0; true; retryCount++) {
-			Transaction transaction = createUpdateTransaction(datastore);
-			try {
-				V newValue;
-				try {
-					V oldValue = get(datastore, transaction, id);
-					newValue = updater.update(oldValue);
-					if (newValue != null && !id.equals(newValue.getId())) {
-						throw new IllegalUpdateException();
-					}
-					if (newValue == null) {
-						remove(datastore, transaction, id);
-					} else {
-						newValue = put(datastore, transaction, newValue);
-					}
-				} catch (IdNotFoundException e) {
-					newValue = updater.update(null);
-					if (newValue != null) {
-						I newId = newValue.getId();
-						if (newId != null && !id.equals(newId)) {
-							throw new IllegalUpdateException();
-						}
-						try {
-							newValue = add(datastore, transaction, newValue);
-						} catch (DuplicateIdException _) {
-							throw new Error("Never reaches here.");
+		createBatchExecutor(null).execute(remainingShards, 1,
+				new BatchExecutor.Batch<ScanShard, Void>() {
+					@Override
+					public List<Void> execute(List<ScanShard> partialShards)
+							throws Exception {
+						for (ScanShard shard : partialShards) {
+							scan(datastore, shard, callback);
 						}
-					}
-				}
 
-				transaction.commit();
+						return Collections.emptyList();
+					}
+				});
+	}
 
-				return newValue;
-			} catch (DatastoreFailureException e) {
-				throw new DatabaseException(e);
-			} catch (ConcurrentModificationException e) {
-				if (retryCount < NUMBER_OF_MAX_RETRIES) {
-					continue;
-				}
+	protected void scan(DatastoreService datastore, ScanShard shard,
+			ScanCallback<? super V> callback) throws Exception {
+		List<FilterPredicate> filters = new ArrayList<FilterPredicate>();
+		if (shard.getStartKey() != null) {
+			filters.add(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY,
+					FilterOperator.GREATER_THAN_OR_EQUAL, shard.getStartKey()));
+		}
+		if (shard.getEndKey() != null) {
+			filters.add(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY,
+					FilterOperator.LESS_THAN, shard.getEndKey()));
+		}
 
-				throw new DatabaseException(e);
-			} finally {
-				if (transaction.isActive()) {
-					transaction.rollback();
-				}
+		while (!shard.isCompleted()) {
+			Query query = new Query(getKind());
+			if (filters.size() == 1) {
+				query.setFilter(filters.get(0));
+			} else if (filters.size() > 1) {
+				query.setFilter(CompositeFilterOperator
+						.and(new ArrayList<Filter>(filters)));
 			}
+
+			Page<? extends V> page = searchPage(datastore, null, query,
+					limitAndCursor(getBatchSize(), shard.getCursor()));
+			callback.process(shard, page.getValues());
+			shard.advance(page.getEndCursor());
 		}
 	}
 
-	protected Transaction createUpdateTransaction(DatastoreService datastore) {
-		return datastore.beginTransaction();
+	public QueryBuilder query() {
+		return new QueryBuilder();
 	}
 
-	protected FetchOptions limitAndOffset(int limit, int offset) {
-		return limitAndOffset(null, limit, offset);
+	public BatchLoader batchLoader() {
+		return batchLoader(getDatastoreService());
 	}
 
-	protected FetchOptions limitAndOffset(FetchOptions options, int limit,
-			int offset) {
-		if (options == null) {
-			options = FetchOptions.Builder.withLimit(limit);
-		} else {
-			options.limit(limit);
-		}
-		if (offset > 0) {
-			options.offset(offset);
-		}
+	protected BatchLoader batchLoader(DatastoreService datastore) {
+		return new BatchLoader(datastore);
+	}
 
-		return options;
+	protected Iterable<CompositeIndex> getCompositeIndexes() {
+		return Collections.emptyList();
+	}
+
+	protected void checkIndex(boolean ancestor, List<FilterPredicate> filters,
+			List<SortPredicate> sorts) throws IllegalArgumentException,
+			IllegalStateException {
+		CompositeIndex requiredIndex = CompositeIndex.getRequiredIndex(
+				ancestor, filters, sorts);
+		if (requiredIndex == null) {
+			return;
+		}
+
+		for (CompositeIndex index : getCompositeIndexes()) {
+			if (index.serves(requiredIndex)) {
+				return;
+			}
+		}
+
+		throw new IllegalStateException("No composite index is declared for '"
+				+ getKind() + "' (" + requiredIndex + ").");
+	}
+
+	protected Query createProjectionQuery(Iterable<String> propertyNames,
+			boolean distinct) {
+		Query query = new Query(getKind());
+		for (String propertyName : propertyNames) {
+			query.addProjection(new PropertyProjection(propertyName,
+					getPropertyType(propertyName)));
+		}
+		if (query.getProjections().isEmpty()) {
+			throw new IllegalArgumentException(
+					"'propertyNames' cannot be empty.");
+		}
+		query.setDistinct(distinct);
+
+		return query;
+	}
+
+	// Without a type, the datastore returns projected values as RawValue.
+	protected Class<?> getPropertyType(String propertyName) {
+		if (getValueClass() == null) {
+			return null;
+		}
+
+		return getCodec().getPropertyType(propertyName);
+	}
+
+	protected V toPartialValue(Entity entity) {
+		return toValue(entity);
+	}
+
+	@Override
+	public I add(V value) throws DuplicateIdException, DatabaseException {
+		return add(getDatastoreService(), value).getId();
+	}
+
+	protected V add(final DatastoreService datastore, final V value)
+			throws DuplicateIdException, DatabaseException {
+		flushPendingWrites(datastore);
+
+		return runInTransaction(datastore,
+				new TransactionalOperation<V, DuplicateIdException>(
+						MetricsSink.ADD) {
+					@Override
+					V run(Transaction transaction)
+							throws DuplicateIdException, DatabaseException {
+						return add(datastore, transaction, value);
+					}
+				});
+	}
+
+	protected V add(DatastoreService datastore, Transaction transaction, V value)
+			throws DuplicateIdException, DatabaseException {
+		I id = value.getId();
+		// The read is never skipped by the Bloom filter because it may miss
+		// entities written elsewhere and because the read makes the
+		// transaction cover the entity.
+		if (id != null) {
+			try {
+				get(datastore, transaction, id);
+				throw new DuplicateIdException(id);
+			} catch (IdNotFoundException e) {
+			}
+		}
+
+		return put(datastore, transaction, value);
+	}
+
+	// Adds values with ids, reading and writing each entity group in a
+	// transaction so that no concurrently written entity is overwritten.
+	// Values in different transactions are added independently.
+	protected List<V> addInTransactions(final DatastoreService datastore,
+			List<? extends V> values) throws DuplicateIdException,
+			DatabaseException {
+		flushPendingWrites(datastore);
+
+		Map<Key, List<V>> groupKeysToValues = new LinkedHashMap<Key, List<V>>();
+		for (V value : values) {
+			Key groupKey = getEntityGroupKey(toKey(value.getId()));
+			List<V> groupValues = groupKeysToValues.get(groupKey);
+			if (groupValues == null) {
+				groupValues = new ArrayList<V>();
+				groupKeysToValues.put(groupKey, groupValues);
+			}
+			groupValues.add(value);
+		}
+
+		for (List<List<V>> groups : partition(new ArrayList<List<V>>(
+				groupKeysToValues.values()), MAX_ENTITY_GROUPS_PER_TRANSACTION)) {
+			final List<V> valuesInTransaction = new ArrayList<V>();
+			final List<I> idsInTransaction = new ArrayList<I>();
+			for (List<V> groupValues : groups) {
+				for (V value : groupValues) {
+					valuesInTransaction.add(value);
+					idsInTransaction.add(value.getId());
+				}
+			}
+			final TransactionOptions options = TransactionOptions.Builder
+					.withXG(groups.size() > 1);
+
+			runInTransaction(datastore,
+					new TransactionalOperation<Void, DuplicateIdException>(
+							MetricsSink.ADD) {
+						@Override
+						Transaction beginTransaction(DatastoreService datastore) {
+							return datastore.beginTransaction(options);
+						}
+
+						@Override
+						Void run(Transaction transaction)
+								throws DuplicateIdException, DatabaseException {
+							Iterator<? extends I> existingIds = getExistingIds(
+									datastore, transaction, idsInTransaction)
+									.iterator();
+							if (existingIds.hasNext()) {
+								throw new DuplicateIdException(existingIds
+										.next());
+							}
+
+							put(datastore, transaction, valuesInTransaction);
+
+							return null;
+						}
+					});
+		}
+
+		return new ArrayList<V>(values);
+	}
+
+	@Override
+	public void put(V value) throws DatabaseException {
+		put(getDatastoreService(), value);
+	}
+
+	protected V put(DatastoreService datastore, V value)
+			throws DatabaseException {
+		return put(datastore, null, value);
+	}
+
+	protected V put(DatastoreService datastore, Transaction transaction, V value)
+			throws DatabaseException {
+		WriteBehindQueue<I, V> queue = getWriteBehindQueue();
+		if (queue != null && value.getId() != null) {
+			if (transaction == null) {
+				queue.put(value.getId(), value);
+				flushIfNeeded(datastore, queue);
+
+				return value;
+			}
+
+			discardPendingWrites(Collections.singletonList(value.getId()));
+		}
+
+		Key key = datastorePut(datastore, transaction, value);
+		if (value.getId() != null) {
+			return value;
+		}
+
+		return assignId(value, toId(key));
+	}
+
+	@Override
+	public void put(Iterable<? extends V> values) throws DatabaseException {
+		put(getDatastoreService(), values);
+	}
+
+	protected List<Key> put(DatastoreService datastore,
+			Iterable<? extends V> values) throws DatabaseException {
+		return put(datastore, null, values);
+	}
+
+	protected List<Key> put(DatastoreService datastore,
+			Transaction transaction, Iterable<? extends V> values)
+			throws DatabaseException {
+		WriteBehindQueue<I, V> queue = getWriteBehindQueue();
+		if (queue == null) {
+			return datastorePut(datastore, transaction, values);
+		}
+
+		boolean hasAllIds = true;
+		List<I> ids = new ArrayList<I>();
+		for (V value : values) {
+			if (value.getId() == null) {
+				hasAllIds = false;
+			} else {
+				ids.add(value.getId());
+			}
+		}
+
+		if (transaction != null || !hasAllIds) {
+			discardPendingWrites(ids);
+			return datastorePut(datastore, transaction, values);
+		}
+
+		List<Key> keys = new ArrayList<Key>();
+		for (V value : values) {
+			queue.put(value.getId(), value);
+			keys.add(toKey(value.getId()));
+		}
+		flushIfNeeded(datastore, queue);
+
+		return keys;
+	}
+
+	public void putAll(Iterable<? extends V> values) throws DatabaseException {
+		putAll(getDatastoreService(), values);
+	}
+
+	protected List<V> putAll(final DatastoreService datastore,
+			Iterable<? extends V> values) throws DatabaseException {
+		List<V> valueList = new ArrayList<V>();
+		List<I> ids = new ArrayList<I>();
+		for (V value : values) {
+			valueList.add(value);
+			if (value.getId() != null) {
+				ids.add(value.getId());
+			}
+		}
+		discardPendingWrites(ids);
+
+		final List<Entity> entities = toEntities(valueList);
+
+		List<Integer> newRootIndices = new ArrayList<Integer>();
+		Map<Key, List<Integer>> groupKeysToIndices = new LinkedHashMap<Key, List<Integer>>();
+		for (int i = 0; i < entities.size(); i++) {
+			Key groupKey = getEntityGroupKey(entities.get(i).getKey());
+			if (!groupKey.isComplete()) {
+				newRootIndices.add(i);
+				continue;
+			}
+
+			List<Integer> indices = groupKeysToIndices.get(groupKey);
+			if (indices == null) {
+				indices = new ArrayList<Integer>();
+				groupKeysToIndices.put(groupKey, indices);
+			}
+			indices.add(i);
+		}
+
+		final Key[] keys = new Key[entities.size()];
+
+		if (!newRootIndices.isEmpty()) {
+			List<Key> newKeys = datastorePutEntities(datastore, null,
+					select(entities, newRootIndices));
+			for (int i = 0; i < newRootIndices.size(); i++) {
+				keys[newRootIndices.get(i)] = newKeys.get(i);
+			}
+		}
+
+		List<List<Integer>> groups = new ArrayList<List<Integer>>(
+				groupKeysToIndices.values());
+		createBatchExecutor(null).execute(groups, 1,
+				new BatchExecutor.Batch<List<Integer>, Void>() {
+					@Override
+					public List<Void> execute(List<List<Integer>> partialGroups)
+							throws DatabaseException {
+						for (List<Integer> indices : partialGroups) {
+							List<Key> groupKeys = putInTransaction(datastore,
+									select(entities, indices));
+							for (int i = 0; i < indices.size(); i++) {
+								keys[indices.get(i)] = groupKeys.get(i);
+							}
+						}
+
+						return Collections.emptyList();
+					}
+				});
+
+		List<V> newValues = new ArrayList<V>(valueList.size());
+		for (int i = 0; i < valueList.size(); i++) {
+			V value = valueList.get(i);
+			newValues.add(value.getId() != null ? value : assignId(value,
+					toId(keys[i])));
+		}
+
+		return newValues;
+	}
+
+	private List<Key> putInTransaction(final DatastoreService datastore,
+			final List<Entity> entities) throws DatabaseException {
+		return runInTransaction(datastore,
+				new TransactionalOperation<List<Key>, RuntimeException>(
+						MetricsSink.PUT) {
+					@Override
+					List<Key> run(Transaction transaction)
+							throws DatabaseException {
+						return datastorePutEntities(datastore, transaction,
+								entities);
+					}
+				});
+	}
+
+	protected static Key getEntityGroupKey(Key key) {
+		Key groupKey = key;
+		while (groupKey.getParent() != null) {
+			groupKey = groupKey.getParent();
+		}
+
+		return groupKey;
+	}
+
+	private static <T> List<T> select(List<T> list, List<Integer> indices) {
+		List<T> selected = new ArrayList<T>(indices.size());
+		for (int index : indices) {
+			selected.add(list.get(index));
+		}
+
+		return selected;
+	}
+
+	@Override
+	public void remove(I id) throws DatabaseException {
+		remove(getDatastoreService(), id);
+	}
+
+	protected void remove(DatastoreService datastore, I id)
+			throws DatabaseException {
+		remove(datastore, null, id);
+	}
+
+	protected void remove(DatastoreService datastore, Transaction transaction,
+			I id) throws DatabaseException {
+		WriteBehindQueue<I, V> queue = getWriteBehindQueue();
+		if (queue != null) {
+			if (transaction == null) {
+				queue.remove(id);
+				flushIfNeeded(datastore, queue);
+
+				return;
+			}
+
+			discardPendingWrites(Collections.singletonList(id));
+		}
+
+		datastoreDelete(datastore, transaction, id);
+	}
+
+	@Override
+	public void remove(Iterable<? extends I> ids) throws DatabaseException {
+		remove(getDatastoreService(), ids);
+	}
+
+	protected void remove(DatastoreService datastore, Iterable<? extends I> ids)
+			throws DatabaseException {
+		remove(datastore, null, ids);
+	}
+
+	protected void remove(DatastoreService datastore, Transaction transaction,
+			Iterable<? extends I> ids) throws DatabaseException {
+		WriteBehindQueue<I, V> queue = getWriteBehindQueue();
+		if (queue != null) {
+			if (transaction == null) {
+				for (I id : ids) {
+					queue.remove(id);
+				}
+				flushIfNeeded(datastore, queue);
+
+				return;
+			}
+
+			discardPendingWrites(ids);
+		}
+
+		try {
+			datastoreDelete(datastore, transaction, ids);
+		} catch (IllegalArgumentException | ConcurrentModificationException
+				| DatastoreFailureException e) {
+			throw new DatabaseException(e);
+		}
+	}
+
+	@Override
+	public void removeAll() throws DatabaseException {
+		removeAll(getDatastoreService());
+	}
+
+	protected void removeAll(DatastoreService datastore)
+			throws DatabaseException {
+		removeAll(datastore, null);
+	}
+
+	protected void removeAll(DatastoreService datastore,
+			Transaction transaction) throws DatabaseException {
+		removeAllAndCount(datastore, transaction, null);
+	}
+
+	// Returns the number of the removed entities.
+	public long removeAllAndCount() throws DatabaseException {
+		return removeAllAndCount(getDatastoreService());
+	}
+
+	protected long removeAllAndCount(DatastoreService datastore)
+			throws DatabaseException {
+		return removeAllAndCount(datastore, null, null);
+	}
+
+	protected long removeAllAndCount(DatastoreService datastore,
+			Transaction transaction, String startCursor)
+			throws DatabaseException {
+		WriteBehindQueue<I, V> queue = getWriteBehindQueue();
+		if (queue != null) {
+			queue.clear();
+		}
+
+		int limit = transaction == null ? getBatchSize()
+				* getMaxConcurrentBatches() : getBatchSize();
+
+		long count = 0;
+		String cursor = startCursor;
+		do {
+			Page<? extends I> page = remove(datastore, transaction, limit,
+					cursor);
+			count += page.getValues().size();
+			cursor = page.getEndCursor();
+		} while (cursor != null);
+
+		return count;
+	}
+
+	public Page<? extends I> remove(int limit, String startCursor)
+			throws DatabaseException {
+		return remove(getDatastoreService(), limit, startCursor);
+	}
+
+	protected Page<? extends I> remove(DatastoreService datastore, int limit,
+			String startCursor) throws DatabaseException {
+		return remove(datastore, null, limit, startCursor);
+	}
+
+	protected Page<? extends I> remove(DatastoreService datastore,
+			Transaction transaction, int limit, String startCursor)
+			throws DatabaseException {
+		Query query = new Query(getKind());
+		query.setKeysOnly();
+
+		FetchOptions options = limitAndCursor(limit, startCursor);
+		QueryResultList<Entity> entities = searchEntityList(datastore,
+				transaction, query, options);
+
+		List<Key> keys = new ArrayList<Key>(entities.size());
+		List<I> ids = new ArrayList<I>(entities.size());
+		for (Entity entity : entities) {
+			Key key = entity.getKey();
+			keys.add(key);
+			ids.add(toId(key));
+		}
+
+		try {
+			deleteKeys(datastore, transaction, keys);
+		} catch (IllegalArgumentException | ConcurrentModificationException
+				| DatastoreFailureException e) {
+			throw new DatabaseException(e);
+		}
+
+		return new Page<I>(ids, getEndCursor(entities, options));
+	}
+
+	@Override
+	public V update(I id, Updater<V> updater) throws IllegalUpdateException,
+			DatabaseException {
+		return update(getDatastoreService(), id, updater);
+	}
+
+	protected V update(final DatastoreService datastore, final I id,
+			final Updater<V> updater) throws IllegalUpdateException,
+			DatabaseException {
+		flushPendingWrites(datastore);
+
+		return runInTransaction(datastore,
+				new TransactionalOperation<V, IllegalUpdateException>(
+						MetricsSink.UPDATE) {
+					@Override
+					Transaction beginTransaction(DatastoreService datastore) {
+						return createUpdateTransaction(datastore);
+					}
+
+					@Override
+					V run(Transaction transaction)
+							throws IllegalUpdateException, DatabaseException {
+						return update(datastore, transaction, id, updater);
+					}
+				});
+	}
+
+	private V update(DatastoreService datastore, Transaction transaction, I id,
+			Updater<V> updater) throws IllegalUpdateException,
+			DatabaseException {
+		V newValue;
+		try {
+			Entity oldEntity = datastoreGet(datastore, transaction, toKey(id));
+			newValue = updater.update(decode(oldEntity));
+			if (newValue != null && !id.equals(newValue.getId())) {
+				throw new IllegalUpdateException();
+			}
+			if (newValue == null) {
+				remove(datastore, transaction, id);
+			} else {
+				discardPendingWrites(Collections.singletonList(id));
+				datastorePutEntities(datastore, transaction,
+						Collections.singletonList(encode(newValue, oldEntity)));
+			}
+		} catch (EntityNotFoundException e) {
+			newValue = updater.update(null);
+			if (newValue != null) {
+				I newId = newValue.getId();
+				if (newId != null && !id.equals(newId)) {
+					throw new IllegalUpdateException();
+				}
+				try {
+					newValue = add(datastore, transaction, newValue);
+				} catch (DuplicateIdException _) {
+					throw new Error("Never reaches here.");
+				}
+			}
+		}
+
+		return newValue;
+	}
+
+	public Map<I, V> update(Iterable<? extends I> ids, Updater<V> updater)
+			throws BatchUpdateException, DatabaseException {
+		return update(getDatastoreService(), ids, updater);
+	}
+
+	// Ids in different transactions are updated independently, so a
+	// BatchUpdateException tells which ids were updated and why the others
+	// were not.
+	protected Map<I, V> update(final DatastoreService datastore,
+			Iterable<? extends I> ids, final Updater<V> updater)
+			throws BatchUpdateException, DatabaseException {
+		flushPendingWrites(datastore);
+
+		Set<I> uniqueIds = new LinkedHashSet<I>();
+		Map<Key, List<I>> groupKeysToIds = new LinkedHashMap<Key, List<I>>();
+		for (I id : ids) {
+			if (!uniqueIds.add(id)) {
+				continue;
+			}
+
+			Key groupKey = getEntityGroupKey(toKey(id));
+			List<I> groupIds = groupKeysToIds.get(groupKey);
+			if (groupIds == null) {
+				groupIds = new ArrayList<I>();
+				groupKeysToIds.put(groupKey, groupIds);
+			}
+			groupIds.add(id);
+		}
+
+		List<List<I>> transactionIds = new ArrayList<List<I>>();
+		for (List<List<I>> groups : partition(new ArrayList<List<I>>(
+				groupKeysToIds.values()), MAX_ENTITY_GROUPS_PER_TRANSACTION)) {
+			List<I> idsInTransaction = new ArrayList<I>();
+			for (List<I> groupIds : groups) {
+				idsInTransaction.addAll(groupIds);
+			}
+			transactionIds.add(idsInTransaction);
+		}
+
+		final Map<I, V> updatedValues = Collections
+				.synchronizedMap(new HashMap<I, V>());
+		Map<I, Throwable> failures = new LinkedHashMap<I, Throwable>();
+		try {
+			createBatchExecutor(null).execute(transactionIds, 1,
+					new BatchExecutor.Batch<List<I>, Void>() {
+						@Override
+						public List<Void> execute(
+								List<List<I>> partialTransactionIds)
+								throws IllegalUpdateException,
+								DatabaseException {
+							for (List<I> idsInTransaction : partialTransactionIds) {
+								updatedValues.putAll(updateInTransaction(
+										datastore, idsInTransaction, updater));
+							}
+
+							return Collections.emptyList();
+						}
+					});
+		} catch (BatchException e) {
+			for (BatchException.Failure failure : e.getFailures()) {
+				for (I id : transactionIds.get(failure.getFromIndex())) {
+					failures.put(id, failure.getCause());
+				}
+			}
+		}
+
+		Map<I, V> newValues = new LinkedHashMap<I, V>();
+		for (I id : uniqueIds) {
+			if (updatedValues.containsKey(id)) {
+				newValues.put(id, updatedValues.get(id));
+			}
+		}
+
+		if (!failures.isEmpty()) {
+			throw new BatchUpdateException(newValues, failures);
+		}
+
+		return newValues;
+	}
+
+	private Map<I, V> updateInTransaction(final DatastoreService datastore,
+			final List<I> ids, final Updater<V> updater)
+			throws IllegalUpdateException, DatabaseException {
+		final List<Key> keys = toKeyList(idsToKeys(ids));
+
+		Set<Key> groupKeys = new HashSet<Key>();
+		for (Key key : keys) {
+			groupKeys.add(getEntityGroupKey(key));
+		}
+		final TransactionOptions options = TransactionOptions.Builder
+				.withXG(groupKeys.size() > 1);
+
+		discardPendingWrites(ids);
+
+		return runInTransaction(datastore,
+				new TransactionalOperation<Map<I, V>, IllegalUpdateException>(
+						MetricsSink.UPDATE) {
+					@Override
+					Transaction beginTransaction(DatastoreService datastore) {
+						return datastore.beginTransaction(options);
+					}
+
+					@Override
+					Map<I, V> run(Transaction transaction)
+							throws IllegalUpdateException, DatabaseException {
+						return updateInTransaction(datastore, transaction, ids,
+								keys, updater);
+					}
+				});
+	}
+
+	private Map<I, V> updateInTransaction(DatastoreService datastore,
+			Transaction transaction, List<I> ids, List<Key> keys,
+			Updater<V> updater) throws IllegalUpdateException,
+			DatabaseException {
+		Map<Key, Entity> oldEntities = rpcGet(datastore, transaction, keys);
+
+		Map<I, V> newValues = new LinkedHashMap<I, V>();
+		List<I> putIds = new ArrayList<I>();
+		List<Entity> newEntities = new ArrayList<Entity>();
+		List<Key> removedKeys = new ArrayList<Key>();
+		for (int i = 0; i < ids.size(); i++) {
+			I id = ids.get(i);
+			Entity oldEntity = oldEntities.get(keys.get(i));
+			V newValue = updater.update(oldEntity == null ? null
+					: decode(oldEntity));
+			if (newValue == null) {
+				if (oldEntity != null) {
+					removedKeys.add(keys.get(i));
+				}
+			} else {
+				// As in 'update' of a single id, a value for a missing
+				// entity may have no id and is added with a new one.
+				I newId = newValue.getId();
+				if (newId == null ? oldEntity != null : !id.equals(newId)) {
+					throw new IllegalUpdateException();
+				}
+				putIds.add(id);
+				newEntities.add(oldEntity == null ? encode(newValue) : encode(
+						newValue, oldEntity));
+			}
+			newValues.put(id, newValue);
+		}
+
+		// The writes are split by the batch size and sent one after another
+		// in the transaction.
+		if (!newEntities.isEmpty()) {
+			List<Key> newKeys = datastorePutEntities(datastore, transaction,
+					newEntities);
+			for (int i = 0; i < putIds.size(); i++) {
+				V newValue = newValues.get(putIds.get(i));
+				if (newValue.getId() == null) {
+					newValues.put(putIds.get(i),
+							assignId(newValue, toId(newKeys.get(i))));
+				}
+			}
+		}
+		if (!removedKeys.isEmpty()) {
+			deleteKeys(datastore, transaction, removedKeys);
+		}
+
+		return newValues;
+	}
+
+	protected Transaction createUpdateTransaction(DatastoreService datastore) {
+		return datastore.beginTransaction();
+	}
+
+	public V updateOptimistic(I id, Updater<V> updater)
+			throws IllegalUpdateException, DatabaseException {
+		return updateOptimistic(getDatastoreService(), id, updater);
+	}
+
+	protected V updateOptimistic(DatastoreService datastore, I id,
+			Updater<V> updater) throws IllegalUpdateException,
+			DatabaseException {
+		String versionPropertyName = getVersionPropertyName();
+		if (versionPropertyName == null) {
+			return update(datastore, id, updater);
+		}
+
+		flushPendingWrites(datastore);
+
+		Key key = toKey(id);
+		RetryPolicy retryPolicy = getRetryPolicy();
+		long startTime = System.currentTimeMillis();
+		for (int retryCount = 0; true; retryCount++) {
+			backOff(retryPolicy, retryCount);
+
+			// The value is read and updated outside any transaction so that
+			// 'updater' runs without holding one.
+			Entity oldEntity;
+			try {
+				oldEntity = rpcGet(datastore, null, key);
+			} catch (EntityNotFoundException e) {
+				// A new value needs the duplicate check in 'update'.
+				return update(datastore, id, updater);
+			} catch (IllegalArgumentException | DatastoreFailureException e) {
+				throw new DatabaseException(e);
+			}
+
+			// An entity without a version gets one from 'update'.
+			Object version = oldEntity.getProperty(versionPropertyName);
+			if (!(version instanceof Long)) {
+				return update(datastore, id, updater);
+			}
+
+			V newValue = updater.update(decode(oldEntity));
+			if (newValue != null && !id.equals(newValue.getId())) {
+				throw new IllegalUpdateException();
+			}
+
+			if (compareAndSet(datastore, key, oldEntity, newValue)) {
+				return newValue;
+			}
+
+			if (!retryPolicy.shouldRetry(
+					new ConcurrentModificationException(), retryCount,
+					startTime)) {
+				return update(datastore, id, updater);
+			}
+			recordRetry(MetricsSink.UPDATE);
+		}
+	}
+
+	// Only the version is compared in the transaction, so that it is held
+	// just for the comparison and the write.
+	private boolean compareAndSet(final DatastoreService datastore,
+			final Key key, final Entity oldEntity, final V newValue)
+			throws DatabaseException {
+		final String versionPropertyName = getVersionPropertyName();
+
+		return runInTransaction(datastore,
+				new TransactionalOperation<Boolean, RuntimeException>(
+						MetricsSink.UPDATE) {
+					@Override
+					Transaction beginTransaction(DatastoreService datastore) {
+						return createUpdateTransaction(datastore);
+					}
+
+					@Override
+					Boolean run(Transaction transaction)
+							throws DatabaseException {
+						Entity entity;
+						try {
+							entity = rpcGet(datastore, transaction, key);
+						} catch (EntityNotFoundException e) {
+							return false;
+						}
+
+						if (!oldEntity.getProperty(versionPropertyName).equals(
+								entity.getProperty(versionPropertyName))) {
+							return false;
+						}
+
+						I id = toId(key);
+						discardPendingWrites(Collections.singletonList(id));
+						if (newValue == null) {
+							datastoreDelete(datastore, transaction, id);
+						} else {
+							datastorePutEntities(datastore, transaction,
+									Collections.singletonList(encode(
+											newValue, oldEntity)));
+						}
+
+						return true;
+					}
+
+					@Override
+					Boolean retriesExhausted(RuntimeException exception) {
+						return false;
+					}
+				});
+	}
+
+	// The version counts the writes which read the entity in a transaction:
+	// 'update' and 'updateOptimistic'. Other writes such as 'put' drop it,
+	// so kinds updated optimistically should be written only by those.
+	protected String getVersionPropertyName() {
+		return null;
+	}
+
+	private Entity encode(V value, Entity oldEntity) {
+		Entity entity = encode(value);
+
+		String versionPropertyName = getVersionPropertyName();
+		if (versionPropertyName != null) {
+			Object version = oldEntity.getProperty(versionPropertyName);
+			entity.setUnindexedProperty(versionPropertyName,
+					version instanceof Long ? (Long) version + 1 : 1L);
+		}
+
+		return entity;
+	}
+
+	public WriteBehindQueue.FlushResult flush() {
+		return flush(getDatastoreService());
+	}
+
+	protected WriteBehindQueue.FlushResult flush(DatastoreService datastore) {
+		List<Exception> failures = new ArrayList<Exception>();
+
+		WriteBehindQueue<I, V> queue = getWriteBehindQueue();
+		if (queue == null) {
+			return new WriteBehindQueue.FlushResult(0, 0, failures);
+		}
+
+		// Flushes are serialized so that an older write of an id is never
+		// applied after a newer one.
+		synchronized (flushLock) {
+			Map<I, WriteBehindQueue.Write<V>> puts = new LinkedHashMap<I, WriteBehindQueue.Write<V>>();
+			Map<I, WriteBehindQueue.Write<V>> removals = new LinkedHashMap<I, WriteBehindQueue.Write<V>>();
+			for (Map.Entry<I, WriteBehindQueue.Write<V>> entry : queue
+					.snapshot().entrySet()) {
+				if (entry.getValue().isRemoval()) {
+					removals.put(entry.getKey(), entry.getValue());
+				} else {
+					puts.put(entry.getKey(), entry.getValue());
+				}
+			}
+
+			if (!puts.isEmpty()) {
+				List<V> values = new ArrayList<V>(puts.size());
+				for (WriteBehindQueue.Write<V> write : puts.values()) {
+					values.add(write.getValue());
+				}
+
+				try {
+					datastorePut(datastore, null, values);
+					queue.removeApplied(puts);
+				} catch (DatabaseException | RuntimeException e) {
+					failures.add(e);
+				}
+			}
+
+			if (!removals.isEmpty()) {
+				try {
+					datastoreDelete(datastore, null, removals.keySet());
+					queue.removeApplied(removals);
+				} catch (DatabaseException | RuntimeException e) {
+					failures.add(e);
+				}
+			}
+
+			return new WriteBehindQueue.FlushResult(puts.size(),
+					removals.size(), failures);
+		}
+	}
+
+	protected WriteBehindQueue<I, V> getWriteBehindQueue() {
+		return null;
+	}
+
+	private WriteBehindQueue.Write<V> getPendingWrite(I id) {
+		WriteBehindQueue<I, V> queue = getWriteBehindQueue();
+
+		return queue == null ? null : queue.get(id);
+	}
+
+	private void flushIfNeeded(DatastoreService datastore,
+			WriteBehindQueue<I, V> queue) throws DatabaseException {
+		if (queue.isFlushNeeded()) {
+			checkFlushResult(flush(datastore));
+		}
+		scheduleFlush(datastore, queue);
+	}
+
+	// Flushes the queue after the delay even if no more writes are queued.
+	private void scheduleFlush(final DatastoreService datastore,
+			final WriteBehindQueue<I, V> queue) {
+		synchronized (flushScheduleLock) {
+			if (queue.isEmpty()
+					|| (scheduledFlush != null && !scheduledFlush.isDone())) {
+				return;
+			}
+
+			scheduledFlush = getFlushScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (flushScheduleLock) {
+						scheduledFlush = null;
+					}
+
+					// The failed writes are retried by the next scheduled
+					// flush.
+					flush(datastore);
+					scheduleFlush(datastore, queue);
+				}
+			}, queue.getMaxDelayMillis(), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private ScheduledThreadPoolExecutor getFlushScheduler() {
+		if (flushScheduler == null) {
+			// Threads are created when flushes are scheduled, so that they
+			// belong to the current request.
+			flushScheduler = new ScheduledThreadPoolExecutor(1,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							return getThreadFactory().newThread(runnable);
+						}
+					});
+			// The thread exits while no flush is scheduled, so that it does
+			// not outlive the request.
+			flushScheduler.setKeepAliveTime(THREAD_KEEP_ALIVE_MILLIS,
+					TimeUnit.MILLISECONDS);
+			flushScheduler.allowCoreThreadTimeOut(true);
+		}
+
+		return flushScheduler;
+	}
+
+	// Waits for a running flush, so that it does not apply a discarded write
+	// after the write which replaces it.
+	private void discardPendingWrites(Iterable<? extends I> ids) {
+		WriteBehindQueue<I, V> queue = getWriteBehindQueue();
+		if (queue == null) {
+			return;
+		}
+
+		synchronized (flushLock) {
+			for (I id : ids) {
+				queue.discard(id);
+			}
+		}
+	}
+
+	// Queries do not see the queued writes, so they are flushed first.
+	private void flushBeforeQuery(DatastoreService datastore,
+			Transaction transaction) {
+		WriteBehindQueue<I, V> queue = getWriteBehindQueue();
+		if (transaction != null || queue == null || queue.isEmpty()) {
+			return;
+		}
+
+		WriteBehindQueue.FlushResult result = flush(datastore);
+		if (!result.isSuccessful()) {
+			throw new DatastoreFailureException(
+					"The pending writes could not be flushed.", result
+							.getFailures().get(0));
+		}
+	}
+
+	private void flushPendingWrites(DatastoreService datastore)
+			throws DatabaseException {
+		WriteBehindQueue<I, V> queue = getWriteBehindQueue();
+		if (queue == null || queue.isEmpty()) {
+			return;
+		}
+
+		checkFlushResult(flush(datastore));
+	}
+
+	// The failed writes stay in the queue and are retried by the next flush.
+	private static void checkFlushResult(WriteBehindQueue.FlushResult result)
+			throws DatabaseException {
+		if (!result.isSuccessful()) {
+			throw new DatabaseException(result.getFailures().get(0));
+		}
+	}
+
+	protected RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	private static void backOff(RetryPolicy retryPolicy, int retryCount)
+			throws DatabaseException {
+		try {
+			retryPolicy.backOff(retryCount);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DatabaseException(e);
+		}
+	}
+
+	<T, E extends Exception> T runInTransaction(
+			DatastoreService datastore, TransactionalOperation<T, E> operation)
+			throws E, DatabaseException {
+		RetryPolicy retryPolicy = getRetryPolicy();
+		long startTime = System.currentTimeMillis();
+		for (int retryCount = 0; true; retryCount++) {
+			backOff(retryPolicy, retryCount);
+			Transaction transaction = operation.beginTransaction(datastore);
+			boolean committing = false;
+			try {
+				T result = operation.run(transaction);
+				committing = true;
+				transaction.commit();
+				invalidateCommittedCache(transaction);
+
+				return result;
+			} catch (RuntimeException e) {
+				// The commit may have been applied when it timed out, so
+				// retrying it could apply the operation twice.
+				if (committing && e instanceof DatastoreTimeoutException) {
+					throw new DatabaseException(e);
+				}
+
+				if (!retryPolicy.isRetryable(e)) {
+					throw wrapDatastoreException(e);
+				}
+				if (retryPolicy.shouldRetry(e, retryCount, startTime)) {
+					recordRetry(operation.name);
+					continue;
+				}
+
+				return operation.retriesExhausted(e);
+			} finally {
+				keysWrittenInTransactions.remove(transaction);
+				if (transaction.isActive()) {
+					transaction.rollback();
+				}
+			}
+		}
+	}
+
+	private static RuntimeException wrapDatastoreException(
+			RuntimeException exception) throws DatabaseException {
+		if (exception instanceof IllegalArgumentException
+				|| exception instanceof DatastoreFailureException
+				|| exception instanceof ConcurrentModificationException
+				|| exception instanceof DatastoreTimeoutException) {
+			throw new DatabaseException(exception);
+		}
+
+		return exception;
+	}
+
+	abstract class TransactionalOperation<T, E extends Exception> {
+		private final String name;
+
+		TransactionalOperation(String name) {
+			super();
+			this.name = name;
+		}
+
+		Transaction beginTransaction(DatastoreService datastore) {
+			return datastore.beginTransaction();
+		}
+
+		abstract T run(Transaction transaction) throws E, DatabaseException;
+
+		T retriesExhausted(RuntimeException exception) throws E,
+				DatabaseException {
+			throw new DatabaseException(exception);
+		}
+	}
+
+	public Future<V> getAsync(I id) {
+		return getAsync(getAsyncDatastoreService(), id);
+	}
+
+	protected Future<V> getAsync(AsyncDatastoreService datastore, I id) {
+		return getAsync(datastore, null, id);
+	}
+
+	protected Future<V> getAsync(AsyncDatastoreService datastore,
+			Transaction transaction, final I id) {
+		if (transaction == null) {
+			WriteBehindQueue.Write<V> write = getPendingWrite(id);
+			if (write != null) {
+				if (write.isRemoval()) {
+					return new CompletedFuture<V>(null,
+							new IdNotFoundException(id,
+									new EntityNotFoundException(toKey(id))));
+				}
+
+				return new CompletedFuture<V>(write.getValue(), null);
+			}
+		}
+
+		return new TransformedFuture<Entity, V>(datastore.get(transaction,
+				toKey(id))) {
+			@Override
+			protected V transform(Entity entity) {
+				return decode(entity);
+			}
+
+			@Override
+			protected Throwable transformCause(Throwable cause) {
+				if (cause instanceof EntityNotFoundException) {
+					return new IdNotFoundException(id, cause);
+				}
+
+				return super.transformCause(cause);
+			}
+		};
+	}
+
+	public Future<List<V>> getAsync(Iterable<? extends I> ids) {
+		return getAsync(getAsyncDatastoreService(), ids);
+	}
+
+	protected Future<List<V>> getAsync(AsyncDatastoreService datastore,
+			Iterable<? extends I> ids) {
+		return getAsync(datastore, null, ids);
+	}
+
+	protected Future<List<V>> getAsync(AsyncDatastoreService datastore,
+			Transaction transaction, Iterable<? extends I> ids) {
+		final List<I> idList = new ArrayList<I>();
+		for (I id : ids) {
+			idList.add(id);
+		}
+		final Map<I, WriteBehindQueue.Write<V>> writes = getPendingWrites(
+				transaction, idList);
+
+		return new TransformedFuture<Map<Key, Entity>, List<V>>(datastore.get(
+				transaction, getUnwrittenKeys(idList, writes))) {
+			@Override
+			protected List<V> transform(Map<Key, Entity> entities) {
+				List<V> values = new ArrayList<V>();
+				for (I id : idList) {
+					WriteBehindQueue.Write<V> write = writes.get(id);
+					if (write == null) {
+						values.add(decode(entities.get(toKey(id))));
+					} else {
+						values.add(write.isRemoval() ? toValue(null) : write
+								.getValue());
+					}
+				}
+
+				return values;
+			}
+		};
+	}
+
+	public Future<List<I>> getExistingIdsAsync(Iterable<? extends I> ids) {
+		return getExistingIdsAsync(getAsyncDatastoreService(), ids);
+	}
+
+	protected Future<List<I>> getExistingIdsAsync(
+			AsyncDatastoreService datastore, Iterable<? extends I> ids) {
+		return getExistingIdsAsync(datastore, null, ids);
+	}
+
+	protected Future<List<I>> getExistingIdsAsync(
+			AsyncDatastoreService datastore, Transaction transaction,
+			Iterable<? extends I> ids) {
+		final List<I> idList = new ArrayList<I>();
+		for (I id : ids) {
+			idList.add(id);
+		}
+		final Map<I, WriteBehindQueue.Write<V>> writes = getPendingWrites(
+				transaction, idList);
+
+		return new TransformedFuture<Map<Key, Entity>, List<I>>(datastore.get(
+				transaction, getUnwrittenKeys(idList, writes))) {
+			@Override
+			protected List<I> transform(Map<Key, Entity> entities) {
+				List<I> existingIds = new ArrayList<I>();
+				for (I id : idList) {
+					WriteBehindQueue.Write<V> write = writes.get(id);
+					if (write == null ? entities.containsKey(toKey(id))
+							: !write.isRemoval()) {
+						existingIds.add(id);
+					}
+				}
+
+				return existingIds;
+			}
+		};
+	}
+
+	// The pending writes are taken when the operation starts, as the
+	// synchronous reads do.
+	private Map<I, WriteBehindQueue.Write<V>> getPendingWrites(
+			Transaction transaction, List<I> ids) {
+		Map<I, WriteBehindQueue.Write<V>> writes = new HashMap<I, WriteBehindQueue.Write<V>>();
+
+		WriteBehindQueue<I, V> queue = getWriteBehindQueue();
+		if (transaction != null || queue == null || queue.isEmpty()) {
+			return writes;
+		}
+
+		for (I id : ids) {
+			WriteBehindQueue.Write<V> write = queue.get(id);
+			if (write != null) {
+				writes.put(id, write);
+			}
+		}
+
+		return writes;
+	}
+
+	private List<Key> getUnwrittenKeys(List<I> ids,
+			Map<I, WriteBehindQueue.Write<V>> writes) {
+		List<Key> keys = new ArrayList<Key>();
+		for (I id : ids) {
+			if (!writes.containsKey(id)) {
+				keys.add(toKey(id));
+			}
+		}
+
+		return keys;
+	}
+
+	public Future<V> putAsync(V value) {
+		return putAsync(getAsyncDatastoreService(), value);
+	}
+
+	protected Future<V> putAsync(AsyncDatastoreService datastore, V value) {
+		return putAsync(datastore, null, value);
+	}
+
+	protected Future<V> putAsync(AsyncDatastoreService datastore,
+			final Transaction transaction, final V value) {
+		if (value.getId() != null) {
+			discardPendingWrites(Collections.singletonList(value.getId()));
+		}
+
+		Entity entity = encode(value);
+		if (entity.getKey().isComplete()) {
+			updateCache(transaction, Collections.singletonList(entity.getKey()));
+		}
+
+		return new TransformedFuture<Key, V>(datastore.put(transaction,
+				entity)) {
+			@Override
+			protected V transform(Key key) {
+				updateCache(transaction, Collections.singletonList(key));
+				if (value.getId() != null) {
+					return value;
+				}
+
+				return assignId(value, toId(key));
+			}
+		};
+	}
+
+	public Future<List<Key>> putAsync(Iterable<? extends V> values) {
+		return putAsync(getAsyncDatastoreService(), values);
+	}
+
+	protected Future<List<Key>> putAsync(AsyncDatastoreService datastore,
+			Iterable<? extends V> values) {
+		return putAsync(datastore, null, values);
+	}
+
+	protected Future<List<Key>> putAsync(AsyncDatastoreService datastore,
+			final Transaction transaction, Iterable<? extends V> values) {
+		List<I> ids = new ArrayList<I>();
+		for (V value : values) {
+			if (value.getId() != null) {
+				ids.add(value.getId());
+			}
+		}
+		discardPendingWrites(ids);
+
+		List<Entity> entities = toEntities(values);
+		List<Key> entityKeys = new ArrayList<Key>(entities.size());
+		for (Entity entity : entities) {
+			if (entity.getKey().isComplete()) {
+				entityKeys.add(entity.getKey());
+			}
+		}
+		updateCache(transaction, entityKeys);
+
+		return new TransformedFuture<List<Key>, List<Key>>(datastore.put(
+				transaction, entities)) {
+			@Override
+			protected List<Key> transform(List<Key> keys) {
+				updateCache(transaction, keys);
+				return keys;
+			}
+		};
+	}
+
+	public Future<Void> removeAsync(I id) {
+		return removeAsync(getAsyncDatastoreService(), id);
+	}
+
+	protected Future<Void> removeAsync(AsyncDatastoreService datastore, I id) {
+		return removeAsync(datastore, null, id);
+	}
+
+	protected Future<Void> removeAsync(AsyncDatastoreService datastore,
+			final Transaction transaction, I id) {
+		discardPendingWrites(Collections.singletonList(id));
+
+		final List<Key> keys = Collections.singletonList(toKey(id));
+		invalidateCache(transaction, keys);
+
+		// Evicts again in case a reader cached the entity before the
+		// deletion was applied.
+		return new TransformedFuture<Void, Void>(datastore.delete(transaction,
+				keys)) {
+			@Override
+			protected Void transform(Void result) {
+				invalidateCache(transaction, keys);
+				return result;
+			}
+		};
+	}
+
+	public Future<Void> removeAsync(Iterable<? extends I> ids) {
+		return removeAsync(getAsyncDatastoreService(), ids);
+	}
+
+	protected Future<Void> removeAsync(AsyncDatastoreService datastore,
+			Iterable<? extends I> ids) {
+		return removeAsync(datastore, null, ids);
+	}
+
+	protected Future<Void> removeAsync(AsyncDatastoreService datastore,
+			final Transaction transaction, Iterable<? extends I> ids) {
+		discardPendingWrites(ids);
+
+		final List<Key> keys = toKeyList(idsToKeys(ids));
+		invalidateCache(transaction, keys);
+
+		return new TransformedFuture<Void, Void>(datastore.delete(transaction,
+				keys)) {
+			@Override
+			protected Void transform(Void result) {
+				invalidateCache(transaction, keys);
+				return result;
+			}
+		};
+	}
+
+	protected FetchOptions limitAndOffset(int limit, int offset) {
+		return limitAndOffset(null, limit, offset);
+	}
+
+	protected FetchOptions limitAndOffset(FetchOptions options, int limit,
+			int offset) {
+		if (options == null) {
+			options = FetchOptions.Builder.withLimit(limit);
+		} else {
+			options.limit(limit);
+		}
+		if (offset > 0) {
+			options.offset(offset);
+		}
+
+		return options;
+	}
+
+	protected FetchOptions limitAndCursor(int limit, String startCursor)
+			throws DatabaseException {
+		FetchOptions options = FetchOptions.Builder.withLimit(limit);
+		if (startCursor != null) {
+			try {
+				options.startCursor(Cursor.fromWebSafeString(startCursor));
+			} catch (IllegalArgumentException e) {
+				throw new DatabaseException(e);
+			}
+		}
+
+		return options;
 	}
 
 	protected Iterable<? extends Entity> searchEntities(
 			DatastoreService datastore, Transaction transaction, Query query,
 			FetchOptions fetchOptions) {
-		return datastore.prepare(transaction, query).asIterable(fetchOptions);
+		flushBeforeQuery(datastore, transaction);
+
+		final Iterable<Entity> entities = datastore.prepare(transaction, query)
+				.asIterable(fetchOptions);
+		final int batchSize = fetchOptions == null
+				|| fetchOptions.getChunkSize() == null ? DEFAULT_QUERY_BATCH_SIZE
+				: fetchOptions.getChunkSize();
+
+		// The query is run lazily while being iterated, so the iteration is
+		// timed instead of the preparation.
+		return new Iterable<Entity>() {
+			@Override
+			public Iterator<Entity> iterator() {
+				return new TimedEntityIterator(entities.iterator(), batchSize);
+			}
+		};
+	}
+
+	protected QueryResultList<Entity> searchEntityList(
+			DatastoreService datastore, Transaction transaction, Query query,
+			FetchOptions fetchOptions) {
+		flushBeforeQuery(datastore, transaction);
+
+		long startTime = System.nanoTime();
+		QueryResultList<Entity> entities = null;
+		try {
+			entities = datastore.prepare(transaction, query)
+					.asQueryResultList(fetchOptions);
+			return entities;
+		} finally {
+			recordOperation(MetricsSink.QUERY,
+					entities == null ? 0 : entities.size(), startTime);
+		}
+	}
+
+	protected Page<? extends I> searchIdPage(DatastoreService datastore,
+			Transaction transaction, Query query, FetchOptions options) {
+		query.setKeysOnly();
+		QueryResultList<Entity> entities = searchEntityList(datastore,
+				transaction, query, options);
+
+		List<I> ids = new ArrayList<I>(entities.size());
+		for (Entity entity : entities) {
+			ids.add(toId(entity.getKey()));
+		}
+
+		return new Page<I>(ids, getEndCursor(entities, options));
+	}
+
+	protected Page<? extends V> searchPage(DatastoreService datastore,
+			Transaction transaction, Query query, FetchOptions options) {
+		QueryResultList<Entity> entities = searchEntityList(datastore,
+				transaction, query, options);
+
+		List<V> values = new ArrayList<V>(entities.size());
+		for (Entity entity : entities) {
+			values.add(decode(entity));
+		}
+
+		return new Page<V>(values, getEndCursor(entities, options));
+	}
+
+	protected Iterable<? extends V> searchPartialValues(
+			DatastoreService datastore, Transaction transaction, Query query,
+			FetchOptions options) {
+		final Iterable<? extends Entity> entities = searchEntities(datastore,
+				transaction, query, options);
+
+		return new Iterable<V>() {
+			@Override
+			public Iterator<V> iterator() {
+				return new PartialValueIterator(entities.iterator());
+			}
+		};
+	}
+
+	protected Page<? extends V> searchPartialPage(DatastoreService datastore,
+			Transaction transaction, Query query, FetchOptions options) {
+		QueryResultList<Entity> entities = searchEntityList(datastore,
+				transaction, query, options);
+
+		List<V> values = new ArrayList<V>(entities.size());
+		for (Entity entity : entities) {
+			values.add(toPartialValue(entity));
+		}
+
+		return new Page<V>(values, getEndCursor(entities, options));
+	}
+
+	private static String getEndCursor(QueryResultList<Entity> entities,
+			FetchOptions options) {
+		Integer limit = options.getLimit();
+		if (limit != null && entities.size() < limit) {
+			return null;
+		}
+
+		Cursor cursor = entities.getCursor();
+		return cursor == null ? null : cursor.toWebSafeString();
 	}
 
 	protected Iterable<? extends I> searchIds(DatastoreService datastore,
@@ -489,35 +2275,643 @@ public abstract class Database<I, V extends Value<I>> extends
 				FetchOptions.Builder.withDefaults());
 	}
 
-	protected Iterable<? extends V> search(DatastoreService datastore,
-			Transaction transaction, Query query) {
-		return search(datastore, transaction, query,
-				FetchOptions.Builder.withDefaults());
+	protected Iterable<? extends V> search(DatastoreService datastore,
+			Transaction transaction, Query query) {
+		return search(datastore, transaction, query,
+				FetchOptions.Builder.withDefaults());
+	}
+
+	protected abstract V assignId(V value, I id);
+
+	protected abstract String getKind();
+
+	protected abstract I toId(Key key);
+
+	protected abstract Key toKey(I id);
+
+	// 'toValue' and 'toEntity' convert values with the codec of
+	// 'getValueClass'. They throw UnsupportedOperationException only if
+	// 'getValueClass' returns null, in which case subclasses must override
+	// both of them as they did when they were abstract.
+	protected V toValue(Entity entity) throws UnsupportedOperationException {
+		if (entity == null) {
+			return null;
+		}
+
+		EntityCodec<V> codec = getCodec();
+		I id = toId(entity.getKey());
+		V value = codec.decode(entity, id);
+
+		return codec.hasIdField() ? value : assignId(value, id);
+	}
+
+	protected Entity toEntity(V value) throws UnsupportedOperationException {
+		I id = value.getId();
+		Entity entity = id == null ? new Entity(getKind()) : new Entity(
+				toKey(id));
+		getCodec().encode(value, entity);
+
+		return entity;
+	}
+
+	protected Class<V> getValueClass() {
+		return null;
+	}
+
+	// The compressed properties are inflated eagerly. 'toValue' builds
+	// complete values and reads every property, and an Entity cannot defer
+	// reading one, so lazy inflation would save nothing here. Reads which
+	// need no unindexed properties, such as 'exists', id queries and
+	// projections, never decode entities and never inflate them.
+	protected V decode(Entity entity) {
+		EntityCompressor compressor = getEntityCompressor();
+		if (entity != null && compressor != null) {
+			entity = compressor.decompress(entity);
+		}
+
+		return toValue(entity);
+	}
+
+	protected Entity encode(V value) {
+		Entity entity = toEntity(value);
+
+		EntityCompressor compressor = getEntityCompressor();
+		if (compressor != null) {
+			entity = compressor.compress(entity);
+		}
+
+		return entity;
+	}
+
+	protected EntityCompressor getEntityCompressor() {
+		return null;
+	}
+
+	protected EntityCodec<V> getCodec() throws UnsupportedOperationException {
+		Class<V> valueClass = getValueClass();
+		if (valueClass == null) {
+			throw new UnsupportedOperationException("'" + getClass().getName()
+					+ "' must override 'toValue' and 'toEntity', or "
+					+ "'getValueClass'.");
+		}
+
+		return EntityCodec.getInstance(valueClass);
+	}
+
+	protected Iterable<Key> idsToKeys(Iterable<? extends I> ids) {
+		List<Key> keys = new ArrayList<Key>();
+
+		for (I id : ids) {
+			keys.add(toKey(id));
+		}
+
+		return keys;
+	}
+
+	protected static void setPropertyIfNotNull(Entity entity,
+			String propertyName, Object value) throws IllegalArgumentException {
+		if (entity == null) {
+			throw new IllegalArgumentException("'entity' cannot be null.");
+		}
+		if (propertyName == null) {
+			throw new IllegalArgumentException("'propertyName' cannot be null.");
+		}
+
+		if (value == null) {
+			entity.removeProperty(propertyName);
+		} else {
+			entity.setProperty(propertyName, value);
+		}
+	}
+
+	protected Entity datastoreGet(DatastoreService datastore,
+			Transaction transaction, Key key) throws EntityNotFoundException {
+		Cache<Key, Entity> cache = getEntityCache();
+		if (cache == null || transaction != null) {
+			return rpcGet(datastore, transaction, key);
+		}
+
+		Entity entity = cache.getAll(Collections.singleton(key)).get(key);
+		recordCacheAccess(MetricsSink.ENTITY_CACHE, entity == null ? 0 : 1,
+				entity == null ? 1 : 0);
+		if (entity == null) {
+			Map<Key, Object> reservations = cache.reserveAll(Collections
+					.singleton(key));
+			entity = rpcGet(datastore, transaction, key);
+			cache.putAllIfReserved(Collections.singletonMap(key, entity),
+					reservations);
+		}
+
+		return entity;
+	}
+
+	protected Map<Key, Entity> datastoreGet(DatastoreService datastore,
+			Transaction transaction, Iterable<Key> keys) {
+		Cache<Key, Entity> cache = getEntityCache();
+		if (cache == null || transaction != null) {
+			return rpcGet(datastore, transaction, toKeyList(keys));
+		}
+
+		List<Key> keyList = toKeyList(keys);
+		Map<Key, Entity> entities = new HashMap<Key, Entity>(
+				cache.getAll(keyList));
+
+		List<Key> missingKeys = new ArrayList<Key>();
+		for (Key key : keyList) {
+			if (!entities.containsKey(key)) {
+				missingKeys.add(key);
+			}
+		}
+
+		recordCacheAccess(MetricsSink.ENTITY_CACHE, keyList.size()
+				- missingKeys.size(), missingKeys.size());
+
+		if (!missingKeys.isEmpty()) {
+			Map<Key, Object> reservations = cache.reserveAll(missingKeys);
+			Map<Key, Entity> foundEntities = rpcGet(datastore, transaction,
+					missingKeys);
+			if (!foundEntities.isEmpty()) {
+				cache.putAllIfReserved(foundEntities, reservations);
+			}
+			entities.putAll(foundEntities);
+		}
+
+		return entities;
+	}
+
+	protected Key datastorePut(DatastoreService datastore,
+			Transaction transaction, V value) {
+		Entity entity = encode(value);
+		Key key = rpcPut(datastore, transaction, entity);
+		updateCache(transaction, Collections.singletonList(key));
+
+		return key;
+	}
+
+	protected List<Key> datastorePut(DatastoreService datastore,
+			Transaction transaction, Iterable<? extends V> values)
+			throws DatabaseException {
+		return datastorePutEntities(datastore, transaction, toEntities(values));
+	}
+
+	protected List<Key> datastorePutEntities(final DatastoreService datastore,
+			final Transaction transaction, List<Entity> entities)
+			throws DatabaseException {
+		return createBatchExecutor(transaction).execute(entities,
+				getBatchSize(), new BatchExecutor.Batch<Entity, Key>() {
+					@Override
+					public List<Key> execute(List<Entity> partialEntities) {
+						return putEntities(datastore, transaction,
+								partialEntities);
+					}
+				});
+	}
+
+	private List<Key> putEntities(DatastoreService datastore,
+			Transaction transaction, List<Entity> entities) {
+		List<Key> keys = rpcPut(datastore, transaction, entities);
+		updateCache(transaction, keys);
+
+		return keys;
+	}
+
+	protected List<Entity> toEntities(Iterable<? extends V> values) {
+		List<Entity> entities = new ArrayList<Entity>();
+		for (V value : values) {
+			entities.add(encode(value));
+		}
+
+		return entities;
+	}
+
+	protected void datastoreDelete(DatastoreService datastore,
+			Transaction transaction, I id) {
+		Key key = toKey(id);
+		rpcDelete(datastore, transaction, Collections.singletonList(key));
+		invalidateCache(transaction, Collections.singletonList(key));
+	}
+
+	protected void datastoreDelete(DatastoreService datastore,
+			Transaction transaction, Iterable<? extends I> ids)
+			throws DatabaseException {
+		deleteKeys(datastore, transaction, toKeyList(idsToKeys(ids)));
+	}
+
+	protected void deleteKeys(final DatastoreService datastore,
+			final Transaction transaction, List<Key> keys)
+			throws DatabaseException {
+		createBatchExecutor(transaction).execute(keys, getBatchSize(),
+				new BatchExecutor.Batch<Key, Void>() {
+					@Override
+					public List<Void> execute(List<Key> partialKeys) {
+						rpcDelete(datastore, transaction, partialKeys);
+						invalidateCache(transaction, partialKeys);
+
+						return Collections.emptyList();
+					}
+				});
+	}
+
+	Entity rpcGet(DatastoreService datastore, Transaction transaction, Key key)
+			throws EntityNotFoundException {
+		long startTime = System.nanoTime();
+		try {
+			return datastore.get(transaction, key);
+		} finally {
+			recordOperation(MetricsSink.GET, 1, startTime);
+		}
+	}
+
+	Map<Key, Entity> rpcGet(DatastoreService datastore,
+			Transaction transaction, List<Key> keys) {
+		long startTime = System.nanoTime();
+		try {
+			return datastore.get(transaction, keys);
+		} finally {
+			recordOperation(MetricsSink.GET, keys.size(), startTime);
+		}
+	}
+
+	private Key rpcPut(DatastoreService datastore, Transaction transaction,
+			Entity entity) {
+		long startTime = System.nanoTime();
+		try {
+			return datastore.put(transaction, entity);
+		} finally {
+			recordOperation(MetricsSink.PUT, 1, startTime);
+		}
+	}
+
+	private List<Key> rpcPut(DatastoreService datastore,
+			Transaction transaction, List<Entity> entities) {
+		long startTime = System.nanoTime();
+		try {
+			return datastore.put(transaction, entities);
+		} finally {
+			recordOperation(MetricsSink.PUT, entities.size(), startTime);
+		}
+	}
+
+	private void rpcDelete(DatastoreService datastore,
+			Transaction transaction, List<Key> keys) {
+		long startTime = System.nanoTime();
+		try {
+			datastore.delete(transaction, keys);
+		} finally {
+			recordOperation(MetricsSink.DELETE, keys.size(), startTime);
+		}
+	}
+
+	protected MetricsSink getMetricsSink() {
+		return metricsSink;
+	}
+
+	private void recordOperation(String operation, int numberOfEntities,
+			long startTime) {
+		recordLatency(operation, numberOfEntities, System.nanoTime()
+				- startTime);
+	}
+
+	private void recordLatency(String operation, int numberOfEntities,
+			long latencyNanos) {
+		MetricsSink sink = getMetricsSink();
+		if (sink != null) {
+			sink.recordOperation(getKind(), operation, numberOfEntities,
+					latencyNanos);
+		}
+	}
+
+	private void recordRetry(String operation) {
+		MetricsSink sink = getMetricsSink();
+		if (sink != null) {
+			sink.recordRetry(getKind(), operation);
+		}
+	}
+
+	private void recordCacheAccess(String cache, int hitCount, int missCount) {
+		MetricsSink sink = getMetricsSink();
+		if (sink != null) {
+			sink.recordCacheAccess(getKind(), cache, hitCount, missCount);
+		}
+	}
+
+	protected int getBatchSize() {
+		return DEFAULT_BATCH_SIZE;
+	}
+
+	protected int getMaxConcurrentBatches() {
+		return DEFAULT_MAX_CONCURRENT_BATCHES;
+	}
+
+	protected ThreadFactory getThreadFactory() {
+		return ThreadManager.currentRequestThreadFactory();
+	}
+
+	// Batches in a transaction fail fast with the exception of the datastore,
+	// so that the transaction can be retried. Batches executed by the shared
+	// threads run on the same thread, so that they do not wait for the
+	// threads they occupy.
+	BatchExecutor createBatchExecutor(Transaction transaction) {
+		int maxConcurrency = getMaxConcurrentBatches();
+		if (transaction != null || maxConcurrency <= 1
+				|| Boolean.TRUE.equals(IN_BATCH_THREAD.get())) {
+			return new BatchExecutor(1, null, transaction != null);
+		}
+
+		return new BatchExecutor(maxConcurrency, getBatchExecutorService(),
+				false);
+	}
+
+	private ExecutorService getBatchExecutorService() {
+		synchronized (batchExecutorLock) {
+			if (batchExecutorService == null) {
+				int maxConcurrency = getMaxConcurrentBatches();
+				// Threads are created when batches are submitted, so that they
+				// belong to the current request.
+				batchExecutorService = new ThreadPoolExecutor(maxConcurrency,
+						maxConcurrency, THREAD_KEEP_ALIVE_MILLIS,
+						TimeUnit.MILLISECONDS,
+						new LinkedBlockingQueue<Runnable>(),
+						new ThreadFactory() {
+							@Override
+							public Thread newThread(final Runnable runnable) {
+								return getThreadFactory().newThread(
+										new Runnable() {
+											@Override
+											public void run() {
+												IN_BATCH_THREAD
+														.set(Boolean.TRUE);
+												runnable.run();
+											}
+										});
+							}
+						});
+				// The threads exit while no batch is executed, so that they do
+				// not outlive the request.
+				batchExecutorService.allowCoreThreadTimeOut(true);
+			}
+
+			return batchExecutorService;
+		}
+	}
+
+	protected DatastoreService getDatastoreService() {
+		return DatastoreServiceFactory.getDatastoreService();
+	}
+
+	protected AsyncDatastoreService getAsyncDatastoreService() {
+		return DatastoreServiceFactory.getAsyncDatastoreService();
+	}
+
+	protected Cache<Key, Entity> getEntityCache() {
+		return null;
+	}
+
+	protected Cache<I, V> getValueCache() {
+		return null;
+	}
+
+	// Values are copied when they are cached and when they are returned from
+	// the value cache, so that callers cannot change the cached values.
+	// Immutable values can be returned as they are.
+	protected V copyValue(V value) {
+		return toValue(toEntity(value).clone());
+	}
+
+	protected Cache<Key, Boolean> getNegativeCache() {
+		return null;
+	}
+
+	// The filter only learns keys written through this instance, so it is
+	// used only if 'isSingleWriter' returns true. Otherwise 'get' and
+	// 'exists' would report entities written elsewhere as absent.
+	protected BloomFilter createBloomFilter() {
+		return null;
+	}
+
+	// Returns true if no other instance or process writes the kind.
+	protected boolean isSingleWriter() {
+		return false;
+	}
+
+	public void rebuildBloomFilter() throws DatabaseException {
+		rebuildBloomFilter(getDatastoreService());
+	}
+
+	// A new filter is built and replaces the current one when it is
+	// complete, so that lookups never see a partially built filter.
+	protected void rebuildBloomFilter(DatastoreService datastore)
+			throws DatabaseException {
+		BloomFilter filter = isSingleWriter() ? createBloomFilter() : null;
+		if (filter == null) {
+			return;
+		}
+
+		Query query = new Query(getKind());
+		query.setKeysOnly();
+
+		synchronized (bloomFilterLock) {
+			// Keys written during the scan are put into the new filter too.
+			rebuildingBloomFilter = filter;
+			try {
+				for (Entity entity : searchEntities(datastore, null, query,
+						FetchOptions.Builder.withChunkSize(getBatchSize()))) {
+					filter.put(entity.getKey());
+				}
+			} catch (IllegalArgumentException | DatastoreFailureException e) {
+				throw new DatabaseException(e);
+			} finally {
+				rebuildingBloomFilter = null;
+			}
+
+			filter.markBuilt();
+			bloomFilter = filter;
+		}
+	}
+
+	private void updateCache(Transaction transaction, List<Key> keys) {
+		recordExistingKeys(keys);
+
+		// Written entities are evicted rather than cached because a
+		// concurrent write may have been applied after this one.
+		invalidateCache(transaction, keys);
+	}
+
+	private void invalidateCache(Transaction transaction, List<Key> keys) {
+		invalidateCache(keys);
+
+		// A reader may cache the old entity or value again before the
+		// transaction is committed.
+		if (transaction != null
+				&& (getEntityCache() != null || getValueCache() != null)) {
+			synchronized (keysWrittenInTransactions) {
+				List<Key> writtenKeys = keysWrittenInTransactions
+						.get(transaction);
+				if (writtenKeys == null) {
+					writtenKeys = new ArrayList<Key>();
+					keysWrittenInTransactions.put(transaction, writtenKeys);
+				}
+				writtenKeys.addAll(keys);
+			}
+		}
+	}
+
+	private void invalidateCommittedCache(Transaction transaction) {
+		List<Key> writtenKeys = keysWrittenInTransactions.remove(transaction);
+		if (writtenKeys != null) {
+			invalidateCache(writtenKeys);
+		}
+	}
+
+	private void invalidateCache(Collection<Key> keys) {
+		invalidateValueCache(keys);
+
+		Cache<Key, Entity> cache = getEntityCache();
+		if (cache != null && !keys.isEmpty()) {
+			cache.removeAll(keys);
+		}
+	}
+
+	private void invalidateValueCache(Collection<Key> keys) {
+		Cache<I, V> cache = getValueCache();
+		if (cache == null || keys.isEmpty()) {
+			return;
+		}
+
+		List<I> ids = new ArrayList<I>();
+		for (Key key : keys) {
+			ids.add(toId(key));
+		}
+		cache.removeAll(ids);
+	}
+
+	private boolean mightExist(Key key) {
+		BloomFilter filter = bloomFilter;
+		return filter == null || filter.mightContain(key);
+	}
+
+	private boolean isKnownToBeAbsent(Key key) {
+		return removeKeysKnownToBeAbsent(Collections.singletonList(key))
+				.isEmpty();
+	}
+
+	private List<Key> removeKeysKnownToBeAbsent(List<Key> keys) {
+		Cache<Key, Boolean> cache = getNegativeCache();
+		if (cache == null && bloomFilter == null) {
+			return keys;
+		}
+
+		List<Key> candidateKeys = new ArrayList<Key>();
+		for (Key key : keys) {
+			if (mightExist(key)) {
+				candidateKeys.add(key);
+			}
+		}
+
+		if (cache == null || candidateKeys.isEmpty()) {
+			return candidateKeys;
+		}
+
+		Map<Key, Boolean> absentKeys = cache.getAll(candidateKeys);
+		recordCacheAccess(MetricsSink.NEGATIVE_CACHE, absentKeys.size(),
+				candidateKeys.size() - absentKeys.size());
+		if (absentKeys.isEmpty()) {
+			return candidateKeys;
+		}
+
+		List<Key> remainingKeys = new ArrayList<Key>();
+		for (Key key : candidateKeys) {
+			if (!absentKeys.containsKey(key)) {
+				remainingKeys.add(key);
+			}
+		}
+
+		return remainingKeys;
+	}
+
+	// Keys are reserved before they are read, so that a key written in the
+	// meantime is not recorded as absent.
+	private Map<Key, Object> reserveAbsentKeys(List<Key> keys) {
+		Cache<Key, Boolean> cache = getNegativeCache();
+		if (cache == null || keys.isEmpty()) {
+			return null;
+		}
+
+		return cache.reserveAll(keys);
+	}
+
+	private void recordAbsentKeys(List<Key> keys,
+			Map<Key, Object> reservations) {
+		Cache<Key, Boolean> cache = getNegativeCache();
+		if (cache == null || reservations == null || keys.isEmpty()) {
+			return;
+		}
+
+		Map<Key, Boolean> absentKeys = new HashMap<Key, Boolean>();
+		for (Key key : keys) {
+			absentKeys.put(key, Boolean.TRUE);
+		}
+		cache.putAllIfReserved(absentKeys, reservations);
 	}
 
-	protected abstract V assignId(V value, I id);
+	private void recordExistingKeys(List<Key> keys) {
+		BloomFilter filter = bloomFilter;
+		BloomFilter rebuildingFilter = rebuildingBloomFilter;
+		Cache<Key, Boolean> cache = getNegativeCache();
+		if (filter == null && rebuildingFilter == null && cache == null) {
+			return;
+		}
 
-	protected abstract String getKind();
+		List<Key> completeKeys = new ArrayList<Key>(keys.size());
+		for (Key key : keys) {
+			if (key.isComplete()) {
+				completeKeys.add(key);
+			}
+		}
 
-	protected abstract I toId(Key key);
+		if (filter != null) {
+			for (Key key : completeKeys) {
+				filter.put(key);
+			}
+		}
+		if (rebuildingFilter != null) {
+			for (Key key : completeKeys) {
+				rebuildingFilter.put(key);
+			}
+		}
+		if (cache != null && !completeKeys.isEmpty()) {
+			cache.removeAll(completeKeys);
+		}
+	}
 
-	protected abstract Key toKey(I id);
+	protected static <T> List<List<T>> partition(List<T> list, int size) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("'size' must be positive.");
+		}
 
-	protected abstract V toValue(Entity entity);
+		List<List<T>> partitions = new ArrayList<List<T>>();
+		for (int fromIndex = 0; fromIndex < list.size(); fromIndex += size) {
+			partitions.add(list.subList(fromIndex,
+					Math.min(fromIndex + size, list.size())));
+		}
 
-	protected abstract Entity toEntity(V value);
+		return partitions;
+	}
 
-	protected Iterable<Key> idsToKeys(Iterable<? extends I> ids) {
-		List<Key> keys = new ArrayList<Key>();
+	private static List<Key> toKeyList(Iterable<Key> keys) {
+		if (keys instanceof List) {
+			return (List<Key>) keys;
+		}
 
-		for (I id : ids) {
-			keys.add(toKey(id));
+		List<Key> keyList = new ArrayList<Key>();
+		for (Key key : keys) {
+			keyList.add(key);
 		}
 
-		return keys;
+		return keyList;
 	}
 
-	protected static void setPropertyIfNotNull(Entity entity,
+	protected static void setUnindexedPropertyIfNotNull(Entity entity,
 			String propertyName, Object value) throws IllegalArgumentException {
 		if (entity == null) {
 			throw new IllegalArgumentException("'entity' cannot be null.");
@@ -529,48 +2923,62 @@ public abstract class Database<I, V extends Value<I>> extends
 		if (value == null) {
 			entity.removeProperty(propertyName);
 		} else {
-			entity.setProperty(propertyName, value);
+			entity.setUnindexedProperty(propertyName, value);
 		}
 	}
 
-	protected Key datastorePut(DatastoreService datastore,
-			Transaction transaction, V value) {
-		return datastore.put(toEntity(value));
-	}
+	// Records the time spent fetching each batch of a query, including the
+	// first 'hasNext' which runs the query.
+	private class TimedEntityIterator implements Iterator<Entity> {
+		private Iterator<Entity> entityIterator;
+		private int batchSize;
+		private int numberOfEntities;
+		private long latencyNanos;
+		private boolean exhausted;
 
-	protected List<Key> datastorePut(DatastoreService datastore,
-			Transaction transaction, Iterable<? extends V> values) {
-		List<Entity> entities = new ArrayList<Entity>();
-		for (V value : values) {
-			entities.add(toEntity(value));
+		public TimedEntityIterator(Iterator<Entity> entityIterator,
+				int batchSize) {
+			super();
+			this.entityIterator = entityIterator;
+			this.batchSize = batchSize;
 		}
 
-		return datastore.put(entities);
-	}
+		@Override
+		public boolean hasNext() {
+			long startTime = System.nanoTime();
+			boolean hasNext = entityIterator.hasNext();
+			latencyNanos += System.nanoTime() - startTime;
 
-	protected void datastoreDelete(DatastoreService datastore,
-			Transaction transaction, I id) {
-		datastore.delete(transaction, toKey(id));
-	}
+			if (!hasNext && !exhausted) {
+				exhausted = true;
+				recordBatch();
+			}
 
-	protected void datastoreDelete(DatastoreService datastore,
-			Transaction transaction, Iterable<? extends I> ids) {
-		datastore.delete(transaction, idsToKeys(ids));
-	}
+			return hasNext;
+		}
 
-	protected static void setUnindexedPropertyIfNotNull(Entity entity,
-			String propertyName, Object value) throws IllegalArgumentException {
-		if (entity == null) {
-			throw new IllegalArgumentException("'entity' cannot be null.");
+		@Override
+		public Entity next() {
+			long startTime = System.nanoTime();
+			Entity entity = entityIterator.next();
+			latencyNanos += System.nanoTime() - startTime;
+
+			if (++numberOfEntities >= batchSize) {
+				recordBatch();
+			}
+
+			return entity;
 		}
-		if (propertyName == null) {
-			throw new IllegalArgumentException("'propertyName' cannot be null.");
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
 		}
 
-		if (value == null) {
-			entity.removeProperty(propertyName);
-		} else {
-			entity.setUnindexedProperty(propertyName, value);
+		private void recordBatch() {
+			recordLatency(MetricsSink.QUERY, numberOfEntities, latencyNanos);
+			numberOfEntities = 0;
+			latencyNanos = 0;
 		}
 	}
 
@@ -628,7 +3036,281 @@ public abstract class Database<I, V extends Value<I>> extends
 				return null;
 			}
 
-			return toValue(entity);
+			return decode(entity);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	public class BatchLoader {
+		private final DatastoreService datastore;
+		private final Set<I> pendingIds = new LinkedHashSet<I>();
+		private final Map<I, V> loadedValues = new HashMap<I, V>();
+
+		protected BatchLoader(DatastoreService datastore) {
+			super();
+			this.datastore = datastore;
+		}
+
+		public Future<V> get(final I id) {
+			load(id);
+
+			return new LoadFuture<V>(id) {
+				@Override
+				protected V getResult(V value) throws ExecutionException {
+					if (value == null) {
+						throw new ExecutionException(new IdNotFoundException(id,
+								new EntityNotFoundException(toKey(id))));
+					}
+
+					return value;
+				}
+			};
+		}
+
+		public Future<Boolean> exists(I id) {
+			load(id);
+
+			return new LoadFuture<Boolean>(id) {
+				@Override
+				protected Boolean getResult(V value) {
+					return value != null;
+				}
+			};
+		}
+
+		public synchronized void dispatch() throws DatabaseException {
+			if (pendingIds.isEmpty()) {
+				return;
+			}
+
+			List<I> ids = new ArrayList<I>(pendingIds);
+			pendingIds.clear();
+
+			Iterator<? extends V> values;
+			try {
+				values = Database.this.get(datastore, null, ids).iterator();
+			} catch (DatabaseException e) {
+				pendingIds.addAll(ids);
+				throw e;
+			}
+
+			for (I id : ids) {
+				loadedValues.put(id, values.next());
+			}
+		}
+
+		public synchronized void clear() {
+			pendingIds.clear();
+			loadedValues.clear();
+		}
+
+		private synchronized void load(I id) {
+			if (!loadedValues.containsKey(id)) {
+				pendingIds.add(id);
+			}
+		}
+
+		private synchronized boolean isLoaded(I id) {
+			return loadedValues.containsKey(id);
+		}
+
+		private synchronized V getLoadedValue(I id) throws ExecutionException {
+			if (!loadedValues.containsKey(id)) {
+				pendingIds.add(id);
+				try {
+					dispatch();
+				} catch (DatabaseException e) {
+					throw new ExecutionException(e);
+				}
+			}
+
+			return loadedValues.get(id);
+		}
+
+		private abstract class LoadFuture<T> implements Future<T> {
+			private final I id;
+
+			public LoadFuture(I id) {
+				super();
+				this.id = id;
+			}
+
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				return false;
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return false;
+			}
+
+			@Override
+			public boolean isDone() {
+				return isLoaded(id);
+			}
+
+			@Override
+			public T get() throws ExecutionException {
+				return getResult(getLoadedValue(id));
+			}
+
+			@Override
+			public T get(long timeout, TimeUnit unit)
+					throws ExecutionException {
+				return get();
+			}
+
+			protected abstract T getResult(V value) throws ExecutionException;
+		}
+	}
+
+	public class QueryBuilder {
+		private Key ancestor;
+		private List<FilterPredicate> filters = new ArrayList<FilterPredicate>();
+		private List<SortPredicate> sorts = new ArrayList<SortPredicate>();
+
+		public QueryBuilder ancestor(Key ancestor) {
+			this.ancestor = ancestor;
+			return this;
+		}
+
+		public QueryBuilder filter(String propertyName,
+				FilterOperator operator, Object value) {
+			filters.add(new FilterPredicate(propertyName, operator, value));
+			return this;
+		}
+
+		public QueryBuilder equal(String propertyName, Object value) {
+			return filter(propertyName, FilterOperator.EQUAL, value);
+		}
+
+		public QueryBuilder notEqual(String propertyName, Object value) {
+			return filter(propertyName, FilterOperator.NOT_EQUAL, value);
+		}
+
+		public QueryBuilder lessThan(String propertyName, Object value) {
+			return filter(propertyName, FilterOperator.LESS_THAN, value);
+		}
+
+		public QueryBuilder lessThanOrEqual(String propertyName, Object value) {
+			return filter(propertyName, FilterOperator.LESS_THAN_OR_EQUAL,
+					value);
+		}
+
+		public QueryBuilder greaterThan(String propertyName, Object value) {
+			return filter(propertyName, FilterOperator.GREATER_THAN, value);
+		}
+
+		public QueryBuilder greaterThanOrEqual(String propertyName,
+				Object value) {
+			return filter(propertyName, FilterOperator.GREATER_THAN_OR_EQUAL,
+					value);
+		}
+
+		public QueryBuilder in(String propertyName, Collection<?> values) {
+			return filter(propertyName, FilterOperator.IN, values);
+		}
+
+		public QueryBuilder ascending(String propertyName) {
+			sorts.add(CompositeIndex.ascending(propertyName));
+			return this;
+		}
+
+		public QueryBuilder descending(String propertyName) {
+			sorts.add(CompositeIndex.descending(propertyName));
+			return this;
+		}
+
+		public Query toQuery() throws IllegalArgumentException,
+				IllegalStateException {
+			checkIndex(ancestor != null, filters, sorts);
+
+			Query query = new Query(getKind());
+			if (ancestor != null) {
+				query.setAncestor(ancestor);
+			}
+			if (filters.size() == 1) {
+				query.setFilter(filters.get(0));
+			} else if (filters.size() > 1) {
+				query.setFilter(CompositeFilterOperator
+						.and(new ArrayList<Filter>(filters)));
+			}
+			for (SortPredicate sort : sorts) {
+				query.addSort(sort.getPropertyName(), sort.getDirection());
+			}
+
+			return query;
+		}
+
+		public Iterable<? extends V> values() {
+			return values(getDatastoreService(), null);
+		}
+
+		protected Iterable<? extends V> values(DatastoreService datastore,
+				Transaction transaction) {
+			return search(datastore, transaction, toQuery());
+		}
+
+		public Page<? extends V> values(int limit, String startCursor)
+				throws DatabaseException {
+			return values(getDatastoreService(), null, limit, startCursor);
+		}
+
+		protected Page<? extends V> values(DatastoreService datastore,
+				Transaction transaction, int limit, String startCursor)
+				throws DatabaseException {
+			return searchPage(datastore, transaction, toQuery(),
+					limitAndCursor(limit, startCursor));
+		}
+
+		public Iterable<? extends I> ids() {
+			return ids(getDatastoreService(), null);
+		}
+
+		protected Iterable<? extends I> ids(DatastoreService datastore,
+				Transaction transaction) {
+			return searchIds(datastore, transaction, toQuery());
+		}
+
+		public Page<? extends I> ids(int limit, String startCursor)
+				throws DatabaseException {
+			return ids(getDatastoreService(), null, limit, startCursor);
+		}
+
+		protected Page<? extends I> ids(DatastoreService datastore,
+				Transaction transaction, int limit, String startCursor)
+				throws DatabaseException {
+			return searchIdPage(datastore, transaction, toQuery(),
+					limitAndCursor(limit, startCursor));
+		}
+	}
+
+	protected class PartialValueIterator implements Iterator<V> {
+		private Iterator<? extends Entity> entityIterator;
+
+		public PartialValueIterator(Iterator<? extends Entity> entityIterator) {
+			super();
+			this.entityIterator = entityIterator;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return entityIterator.hasNext();
+		}
+
+		@Override
+		public V next() {
+			Entity entity = entityIterator.next();
+			if (entity == null) {
+				return null;
+			}
+
+			return toPartialValue(entity);
 		}
 
 		@Override
@@ -636,4 +3318,105 @@ public abstract class Database<I, V extends Value<I>> extends
 			throw new UnsupportedOperationException();
 		}
 	}
+
+	private static class CompletedFuture<T> implements Future<T> {
+		private T result;
+		private Throwable cause;
+
+		public CompletedFuture(T result, Throwable cause) {
+			super();
+			this.result = result;
+			this.cause = cause;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return true;
+		}
+
+		@Override
+		public T get() throws ExecutionException {
+			if (cause != null) {
+				throw new ExecutionException(cause);
+			}
+
+			return result;
+		}
+
+		@Override
+		public T get(long timeout, TimeUnit unit) throws ExecutionException {
+			return get();
+		}
+	}
+
+	protected abstract class TransformedFuture<S, T> implements Future<T> {
+		private Future<S> future;
+
+		public TransformedFuture(Future<S> future) {
+			super();
+			this.future = future;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return future.cancel(mayInterruptIfRunning);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return future.isCancelled();
+		}
+
+		@Override
+		public boolean isDone() {
+			return future.isDone();
+		}
+
+		@Override
+		public T get() throws InterruptedException, ExecutionException {
+			S result;
+			try {
+				result = future.get();
+			} catch (ExecutionException e) {
+				throw new ExecutionException(transformCause(e.getCause()));
+			}
+
+			return transform(result);
+		}
+
+		@Override
+		public T get(long timeout, TimeUnit unit) throws InterruptedException,
+				ExecutionException, TimeoutException {
+			S result;
+			try {
+				result = future.get(timeout, unit);
+			} catch (ExecutionException e) {
+				throw new ExecutionException(transformCause(e.getCause()));
+			}
+
+			return transform(result);
+		}
+
+		protected abstract T transform(S result);
+
+		protected Throwable transformCause(Throwable cause) {
+			if (cause instanceof IllegalArgumentException
+					|| cause instanceof ConcurrentModificationException
+					|| cause instanceof DatastoreFailureException) {
+				return new DatabaseException(cause);
+			}
+
+			return cause;
+		}
+	}
 }
@@ -0,0 +1,307 @@
+package org.koherent.database.gae;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.appengine.api.datastore.DataTypeUtils;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.RawValue;
+
+public class EntityCodec<V> {
+	private static final ConcurrentMap<Class<?>, EntityCodec<?>> CODECS = new ConcurrentHashMap<Class<?>, EntityCodec<?>>();
+
+	private Class<V> valueClass;
+	private MethodHandle constructor;
+	private FieldCodec idField;
+	private FieldCodec[] propertyFields;
+
+	private EntityCodec(Class<V> valueClass) throws IllegalArgumentException {
+		super();
+		this.valueClass = valueClass;
+
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			java.lang.reflect.Constructor<V> declaredConstructor = valueClass
+					.getDeclaredConstructor();
+			declaredConstructor.setAccessible(true);
+			constructor = lookup.unreflectConstructor(declaredConstructor)
+					.asType(MethodType.methodType(Object.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new IllegalArgumentException("'" + valueClass.getName()
+					+ "' must have a constructor without parameters.", e);
+		}
+
+		List<FieldCodec> propertyFieldList = new ArrayList<FieldCodec>();
+		Set<String> propertyNames = new HashSet<String>();
+		for (Class<?> type = valueClass; type != null && type != Object.class; type = type
+				.getSuperclass()) {
+			for (Field field : type.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers())) {
+					continue;
+				}
+
+				if (field.isAnnotationPresent(Id.class)) {
+					if (idField != null) {
+						throw new IllegalArgumentException("'"
+								+ valueClass.getName()
+								+ "' has more than one @Id field.");
+					}
+					idField = new FieldCodec(lookup, field, null, false);
+					continue;
+				}
+
+				Property property = field.getAnnotation(Property.class);
+				if (property == null) {
+					continue;
+				}
+
+				String propertyName = property.name().isEmpty() ? field
+						.getName() : property.name();
+				if (!propertyNames.add(propertyName)) {
+					throw new IllegalArgumentException("'"
+							+ valueClass.getName()
+							+ "' has more than one property named '"
+							+ propertyName + "'.");
+				}
+				propertyFieldList.add(new FieldCodec(lookup, field,
+						propertyName, property.indexed()));
+			}
+		}
+
+		propertyFields = propertyFieldList
+				.toArray(new FieldCodec[propertyFieldList.size()]);
+	}
+
+	public static <V> EntityCodec<V> getInstance(Class<V> valueClass)
+			throws IllegalArgumentException {
+		@SuppressWarnings("unchecked")
+		EntityCodec<V> codec = (EntityCodec<V>) CODECS.get(valueClass);
+		if (codec == null) {
+			codec = new EntityCodec<V>(valueClass);
+			CODECS.putIfAbsent(valueClass, codec);
+		}
+
+		return codec;
+	}
+
+	public Class<V> getValueClass() {
+		return valueClass;
+	}
+
+	public boolean hasIdField() {
+		return idField != null;
+	}
+
+	// Returns the type of the values stored for the property, which typed
+	// projections need, or null if it is unknown.
+	public Class<?> getPropertyType(String propertyName) {
+		for (FieldCodec propertyField : propertyFields) {
+			if (propertyField.propertyName.equals(propertyName)) {
+				return propertyField.getPropertyType();
+			}
+		}
+
+		return null;
+	}
+
+	public void encode(V value, Entity entity) {
+		for (FieldCodec propertyField : propertyFields) {
+			propertyField.encode(value, entity);
+		}
+	}
+
+	public V decode(Entity entity, Object id) {
+		V value;
+		try {
+			value = valueClass.cast(constructor.invokeExact());
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+
+		if (idField != null && id != null) {
+			idField.set(value, id);
+		}
+		for (FieldCodec propertyField : propertyFields) {
+			propertyField.decode(entity, value);
+		}
+
+		return value;
+	}
+
+	private enum FieldType {
+		INTEGER, LONG, SHORT, BYTE, FLOAT, DOUBLE, ENUM, OTHER
+	}
+
+	private static class FieldCodec {
+		private String propertyName;
+		private boolean indexed;
+		private boolean primitive;
+		private FieldType fieldType;
+		private Class<?> type;
+		private MethodHandle getter;
+		private MethodHandle setter;
+
+		public FieldCodec(MethodHandles.Lookup lookup, Field field,
+				String propertyName, boolean indexed) {
+			super();
+			this.propertyName = propertyName;
+			this.indexed = indexed;
+			this.type = field.getType();
+			this.primitive = type.isPrimitive();
+			this.fieldType = toFieldType(type);
+
+			field.setAccessible(true);
+			try {
+				getter = lookup.unreflectGetter(field).asType(
+						MethodType.methodType(Object.class, Object.class));
+				setter = lookup.unreflectSetter(field).asType(
+						MethodType.methodType(void.class, Object.class,
+								Object.class));
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		public void encode(Object value, Entity entity) {
+			Object propertyValue = toPropertyValue(get(value));
+			if (propertyValue == null) {
+				entity.removeProperty(propertyName);
+			} else if (indexed) {
+				entity.setProperty(propertyName, propertyValue);
+			} else {
+				entity.setUnindexedProperty(propertyName, propertyValue);
+			}
+		}
+
+		public Class<?> getPropertyType() {
+			switch (fieldType) {
+			case INTEGER:
+			case LONG:
+			case SHORT:
+			case BYTE:
+				return Long.class;
+			case FLOAT:
+			case DOUBLE:
+				return Double.class;
+			case ENUM:
+				return String.class;
+			default:
+				if (type == boolean.class) {
+					return Boolean.class;
+				}
+
+				return DataTypeUtils.isSupportedType(type) ? type : null;
+			}
+		}
+
+		public void decode(Entity entity, Object value) {
+			Object fieldValue = toFieldValue(entity.getProperty(propertyName));
+			if (fieldValue == null && primitive) {
+				return;
+			}
+
+			set(value, fieldValue);
+		}
+
+		public Object get(Object value) {
+			try {
+				return getter.invokeExact(value);
+			} catch (Throwable e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public void set(Object value, Object fieldValue) {
+			try {
+				setter.invokeExact(value, fieldValue);
+			} catch (Throwable e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private Object toPropertyValue(Object fieldValue) {
+			if (fieldValue == null) {
+				return null;
+			}
+
+			switch (fieldType) {
+			case INTEGER:
+			case SHORT:
+			case BYTE:
+				return ((Number) fieldValue).longValue();
+			case FLOAT:
+				return ((Number) fieldValue).doubleValue();
+			case ENUM:
+				return ((Enum<?>) fieldValue).name();
+			default:
+				return fieldValue;
+			}
+		}
+
+		private Object toFieldValue(Object propertyValue) {
+			// Projections without types return raw values.
+			if (propertyValue instanceof RawValue) {
+				Class<?> propertyType = getPropertyType();
+				RawValue rawValue = (RawValue) propertyValue;
+				propertyValue = propertyType == null ? rawValue.getValue()
+						: rawValue.asType(propertyType);
+			}
+			if (propertyValue == null) {
+				return null;
+			}
+
+			switch (fieldType) {
+			case INTEGER:
+				return ((Number) propertyValue).intValue();
+			case LONG:
+				return ((Number) propertyValue).longValue();
+			case SHORT:
+				return ((Number) propertyValue).shortValue();
+			case BYTE:
+				return ((Number) propertyValue).byteValue();
+			case FLOAT:
+				return ((Number) propertyValue).floatValue();
+			case DOUBLE:
+				return ((Number) propertyValue).doubleValue();
+			case ENUM:
+				return toEnum(type, (String) propertyValue);
+			default:
+				return propertyValue;
+			}
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private static Object toEnum(Class<?> type, String name) {
+			return Enum.valueOf((Class<? extends Enum>) type, name);
+		}
+
+		private static FieldType toFieldType(Class<?> type) {
+			if (type == int.class || type == Integer.class) {
+				return FieldType.INTEGER;
+			} else if (type == long.class || type == Long.class) {
+				return FieldType.LONG;
+			} else if (type == short.class || type == Short.class) {
+				return FieldType.SHORT;
+			} else if (type == byte.class || type == Byte.class) {
+				return FieldType.BYTE;
+			} else if (type == float.class || type == Float.class) {
+				return FieldType.FLOAT;
+			} else if (type == double.class || type == Double.class) {
+				return FieldType.DOUBLE;
+			} else if (type.isEnum()) {
+				return FieldType.ENUM;
+			}
+
+			return FieldType.OTHER;
+		}
+	}
+}
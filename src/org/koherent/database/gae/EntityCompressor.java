@@ -0,0 +1,126 @@
+package org.koherent.database.gae;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+
+public class EntityCompressor {
+	// The unindexed properties are encoded as a deflated entity protocol
+	// buffer, so that only datastore value types are decoded.
+	public static final byte FORMAT_VERSION = 2;
+	private static final int BUFFER_SIZE = 4096;
+
+	private String propertyName;
+
+	public EntityCompressor(String propertyName) {
+		super();
+		if (propertyName == null) {
+			throw new IllegalArgumentException("'propertyName' cannot be null.");
+		}
+
+		this.propertyName = propertyName;
+	}
+
+	public String getPropertyName() {
+		return propertyName;
+	}
+
+	public Entity compress(Entity entity) throws IllegalArgumentException {
+		Entity unindexedEntity = new Entity(entity.getKey());
+		Entity compressedEntity = new Entity(entity.getKey());
+		for (Map.Entry<String, Object> property : entity.getProperties()
+				.entrySet()) {
+			String name = property.getKey();
+			if (entity.isUnindexedProperty(name)) {
+				unindexedEntity.setUnindexedProperty(name, property.getValue());
+			} else {
+				compressedEntity.setProperty(name, property.getValue());
+			}
+		}
+
+		if (unindexedEntity.getProperties().isEmpty()) {
+			return compressedEntity;
+		}
+
+		byte[] protocolBuffer;
+		try {
+			protocolBuffer = EntityTranslator.convertToPb(unindexedEntity)
+					.toByteArray();
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException(e);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(FORMAT_VERSION);
+		try (DeflaterOutputStream out = new DeflaterOutputStream(bytes,
+				new Deflater(Deflater.BEST_SPEED))) {
+			out.write(protocolBuffer);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+
+		compressedEntity.setUnindexedProperty(propertyName,
+				new Blob(bytes.toByteArray()));
+
+		return compressedEntity;
+	}
+
+	public Entity decompress(Entity entity) throws IllegalArgumentException {
+		Object compressedProperties = entity.getProperty(propertyName);
+		if (!(compressedProperties instanceof Blob)) {
+			return entity;
+		}
+
+		byte[] bytes = ((Blob) compressedProperties).getBytes();
+		if (bytes.length == 0 || bytes[0] != FORMAT_VERSION) {
+			throw new IllegalArgumentException(
+					"Unsupported format of compressed properties: "
+							+ (bytes.length == 0 ? "empty" : bytes[0]));
+		}
+
+		Entity decompressedEntity = new Entity(entity.getKey());
+		for (Map.Entry<String, Object> property : entity.getProperties()
+				.entrySet()) {
+			if (!property.getKey().equals(propertyName)) {
+				decompressedEntity.setProperty(property.getKey(),
+						property.getValue());
+			}
+		}
+
+		Entity unindexedEntity;
+		try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(
+				bytes, 1, bytes.length - 1))) {
+			unindexedEntity = EntityTranslator.createFromPbBytes(readAll(in));
+		} catch (IOException | RuntimeException e) {
+			throw new IllegalArgumentException(e);
+		}
+
+		for (Map.Entry<String, Object> property : unindexedEntity
+				.getProperties().entrySet()) {
+			decompressedEntity.setUnindexedProperty(property.getKey(),
+					property.getValue());
+		}
+
+		return decompressedEntity;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int length;
+		while ((length = in.read(buffer)) != -1) {
+			bytes.write(buffer, 0, length);
+		}
+
+		return bytes.toByteArray();
+	}
+}
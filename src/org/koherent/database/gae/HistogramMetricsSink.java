@@ -0,0 +1,209 @@
+package org.koherent.database.gae;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class HistogramMetricsSink implements MetricsSink {
+	private final ConcurrentMap<String, OperationMetrics> operationMetrics = new ConcurrentHashMap<String, OperationMetrics>();
+	private final ConcurrentMap<String, CacheMetrics> cacheMetrics = new ConcurrentHashMap<String, CacheMetrics>();
+
+	@Override
+	public void recordOperation(String kind, String operation,
+			int numberOfEntities, long latencyNanos) {
+		getOperationMetrics(kind, operation).record(numberOfEntities,
+				latencyNanos);
+	}
+
+	@Override
+	public void recordRetry(String kind, String operation) {
+		getOperationMetrics(kind, operation).retryCount.incrementAndGet();
+	}
+
+	@Override
+	public void recordCacheAccess(String kind, String cache, int hitCount,
+			int missCount) {
+		String name = toName(kind, cache);
+		CacheMetrics metrics = cacheMetrics.get(name);
+		if (metrics == null) {
+			cacheMetrics.putIfAbsent(name, new CacheMetrics());
+			metrics = cacheMetrics.get(name);
+		}
+
+		metrics.hitCount.addAndGet(hitCount);
+		metrics.missCount.addAndGet(missCount);
+	}
+
+	public OperationMetrics getOperationMetrics(String kind, String operation) {
+		String name = toName(kind, operation);
+		OperationMetrics metrics = operationMetrics.get(name);
+		if (metrics == null) {
+			operationMetrics.putIfAbsent(name, new OperationMetrics());
+			metrics = operationMetrics.get(name);
+		}
+
+		return metrics;
+	}
+
+	public Map<String, OperationMetrics> getOperationMetrics() {
+		return Collections.unmodifiableMap(operationMetrics);
+	}
+
+	public Map<String, CacheMetrics> getCacheMetrics() {
+		return Collections.unmodifiableMap(cacheMetrics);
+	}
+
+	private static String toName(String kind, String operation) {
+		return kind + "." + operation;
+	}
+
+	public static class OperationMetrics {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong entityCount = new AtomicLong();
+		private final AtomicLong retryCount = new AtomicLong();
+		private final Histogram latencies = new Histogram();
+
+		void record(int numberOfEntities, long latencyNanos) {
+			count.incrementAndGet();
+			entityCount.addAndGet(numberOfEntities);
+			latencies.record(latencyNanos);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getEntityCount() {
+			return entityCount.get();
+		}
+
+		public long getRetryCount() {
+			return retryCount.get();
+		}
+
+		public Histogram getLatencies() {
+			return latencies;
+		}
+	}
+
+	public static class CacheMetrics {
+		private final AtomicLong hitCount = new AtomicLong();
+		private final AtomicLong missCount = new AtomicLong();
+
+		public long getHitCount() {
+			return hitCount.get();
+		}
+
+		public long getMissCount() {
+			return missCount.get();
+		}
+
+		public double getHitRate() {
+			long hits = hitCount.get();
+			long total = hits + missCount.get();
+
+			return total == 0 ? 0.0 : (double) hits / total;
+		}
+	}
+
+	public static class Histogram {
+		private static final int NUMBER_OF_STRIPES = 8;
+		private static final int SUB_BUCKET_BITS = 2;
+		private static final int NUMBER_OF_SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		private static final int NUMBER_OF_BUCKETS = 64 * NUMBER_OF_SUB_BUCKETS;
+
+		private final AtomicLongArray[] stripes = new AtomicLongArray[NUMBER_OF_STRIPES];
+
+		public Histogram() {
+			super();
+			for (int i = 0; i < stripes.length; i++) {
+				stripes[i] = new AtomicLongArray(NUMBER_OF_BUCKETS);
+			}
+		}
+
+		public void record(long value) {
+			int stripe = (int) (Thread.currentThread().getId() & (NUMBER_OF_STRIPES - 1));
+			stripes[stripe].incrementAndGet(toBucket(Math.max(0, value)));
+		}
+
+		public long getCount() {
+			long count = 0;
+			for (AtomicLongArray stripe : stripes) {
+				for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+					count += stripe.get(i);
+				}
+			}
+
+			return count;
+		}
+
+		public long getPercentile(double percentile) {
+			long[] counts = new long[NUMBER_OF_BUCKETS];
+			long total = 0;
+			for (AtomicLongArray stripe : stripes) {
+				for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+					long count = stripe.get(i);
+					counts[i] += count;
+					total += count;
+				}
+			}
+
+			if (total == 0) {
+				return 0;
+			}
+
+			long rank = (long) Math.ceil(total * percentile / 100.0);
+			long cumulativeCount = 0;
+			for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+				cumulativeCount += counts[i];
+				if (cumulativeCount >= rank) {
+					return toUpperBound(i);
+				}
+			}
+
+			return toUpperBound(NUMBER_OF_BUCKETS - 1);
+		}
+
+		public long getP50() {
+			return getPercentile(50.0);
+		}
+
+		public long getP99() {
+			return getPercentile(99.0);
+		}
+
+		public long getP999() {
+			return getPercentile(99.9);
+		}
+
+		private static int toBucket(long value) {
+			if (value < NUMBER_OF_SUB_BUCKETS) {
+				return (int) value;
+			}
+
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+					& (NUMBER_OF_SUB_BUCKETS - 1);
+
+			return (exponent - SUB_BUCKET_BITS + 1) * NUMBER_OF_SUB_BUCKETS
+					+ subBucket;
+		}
+
+		private static long toUpperBound(int bucket) {
+			if (bucket < NUMBER_OF_SUB_BUCKETS) {
+				return bucket;
+			}
+
+			int exponent = bucket / NUMBER_OF_SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+			int subBucket = bucket % NUMBER_OF_SUB_BUCKETS;
+			if (exponent >= 62) {
+				return Long.MAX_VALUE;
+			}
+
+			return ((long) (NUMBER_OF_SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+		}
+	}
+}
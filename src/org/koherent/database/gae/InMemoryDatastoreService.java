@@ -0,0 +1,1368 @@
+package org.koherent.database.gae;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreAttributes;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Projection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilter;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.appengine.api.datastore.QueryResultIterable;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+
+public class InMemoryDatastoreService implements DatastoreService {
+	private static final String APP_ID = "in-memory";
+	private static final int NUMBER_OF_LOCK_STRIPES = 64;
+	private static final int MAX_ENTITY_GROUPS_PER_XG_TRANSACTION = 25;
+	private static final byte CURSOR_FORMAT_VERSION = 2;
+	private static final String SORT_VALUE_PROPERTY_PREFIX = "sort";
+
+	private final long latencyMillis;
+
+	private final ConcurrentMap<String, ConcurrentSkipListMap<Key, Entity>> kindsToEntities = new ConcurrentHashMap<String, ConcurrentSkipListMap<Key, Entity>>();
+	private final ConcurrentMap<Key, Long> groupVersions = new ConcurrentHashMap<Key, Long>();
+	private final ReentrantLock[] locks = new ReentrantLock[NUMBER_OF_LOCK_STRIPES];
+	private final AtomicLong idSequence = new AtomicLong();
+	private final AtomicLong transactionSequence = new AtomicLong();
+
+	private final ThreadLocal<Deque<InMemoryTransaction>> currentTransactions = new ThreadLocal<Deque<InMemoryTransaction>>() {
+		@Override
+		protected Deque<InMemoryTransaction> initialValue() {
+			return new ConcurrentLinkedDeque<InMemoryTransaction>();
+		}
+	};
+
+	public InMemoryDatastoreService() {
+		this(0);
+	}
+
+	public InMemoryDatastoreService(long latencyMillis) {
+		super();
+		this.latencyMillis = latencyMillis;
+
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	public long getLatencyMillis() {
+		return latencyMillis;
+	}
+
+	public void clear() {
+		kindsToEntities.clear();
+		groupVersions.clear();
+	}
+
+	@Override
+	public Entity get(Key key) throws EntityNotFoundException {
+		return get(getCurrentTransaction(null), key);
+	}
+
+	@Override
+	public Entity get(Transaction transaction, Key key)
+			throws EntityNotFoundException {
+		Entity entity = get(transaction, Collections.singletonList(key)).get(
+				key);
+		if (entity == null) {
+			throw new EntityNotFoundException(key);
+		}
+
+		return entity;
+	}
+
+	@Override
+	public Map<Key, Entity> get(Iterable<Key> keys) {
+		return get(getCurrentTransaction(null), keys);
+	}
+
+	@Override
+	public Map<Key, Entity> get(Transaction transaction, Iterable<Key> keys) {
+		InMemoryTransaction inMemoryTransaction = toInMemoryTransaction(transaction);
+		simulateLatency();
+
+		Map<Key, Entity> entities = new HashMap<Key, Entity>();
+		for (Key key : keys) {
+			checkComplete(key);
+			if (inMemoryTransaction != null) {
+				inMemoryTransaction.enlist(getEntityGroupKey(key));
+			}
+
+			Entity entity = getEntities(key.getKind()).get(key);
+			if (entity != null) {
+				entities.put(key, entity.clone());
+			}
+		}
+
+		return entities;
+	}
+
+	@Override
+	public Key put(Entity entity) {
+		return put(getCurrentTransaction(null), entity);
+	}
+
+	@Override
+	public Key put(Transaction transaction, Entity entity) {
+		return put(transaction, Collections.singletonList(entity)).get(0);
+	}
+
+	@Override
+	public List<Key> put(Iterable<Entity> entities) {
+		return put(getCurrentTransaction(null), entities);
+	}
+
+	@Override
+	public List<Key> put(Transaction transaction, Iterable<Entity> entities) {
+		InMemoryTransaction inMemoryTransaction = toInMemoryTransaction(transaction);
+		simulateLatency();
+
+		List<Entity> completeEntities = new ArrayList<Entity>();
+		List<Key> keys = new ArrayList<Key>();
+		for (Entity entity : entities) {
+			Entity completeEntity = complete(entity);
+			completeEntities.add(completeEntity);
+			keys.add(completeEntity.getKey());
+		}
+
+		if (inMemoryTransaction == null) {
+			write(completeEntities, Collections.<Key> emptyList());
+		} else {
+			for (Entity entity : completeEntities) {
+				inMemoryTransaction.put(entity);
+			}
+		}
+
+		return keys;
+	}
+
+	@Override
+	public void delete(Key... keys) {
+		delete(getCurrentTransaction(null), Arrays.asList(keys));
+	}
+
+	@Override
+	public void delete(Transaction transaction, Key... keys) {
+		delete(transaction, Arrays.asList(keys));
+	}
+
+	@Override
+	public void delete(Iterable<Key> keys) {
+		delete(getCurrentTransaction(null), keys);
+	}
+
+	@Override
+	public void delete(Transaction transaction, Iterable<Key> keys) {
+		InMemoryTransaction inMemoryTransaction = toInMemoryTransaction(transaction);
+		simulateLatency();
+
+		List<Key> keyList = new ArrayList<Key>();
+		for (Key key : keys) {
+			checkComplete(key);
+			keyList.add(key);
+		}
+
+		if (inMemoryTransaction == null) {
+			write(Collections.<Entity> emptyList(), keyList);
+		} else {
+			for (Key key : keyList) {
+				inMemoryTransaction.delete(key);
+			}
+		}
+	}
+
+	@Override
+	public PreparedQuery prepare(Query query) {
+		// Like the datastore, only ancestor queries join the current
+		// transaction.
+		return prepare(query.getAncestor() == null ? null
+				: getCurrentTransaction(null), query);
+	}
+
+	@Override
+	public PreparedQuery prepare(Transaction transaction, Query query) {
+		InMemoryTransaction inMemoryTransaction = toInMemoryTransaction(transaction);
+		if (inMemoryTransaction != null && query.getAncestor() == null) {
+			throw new IllegalArgumentException(
+					"Only ancestor queries are allowed inside transactions.");
+		}
+
+		return new InMemoryPreparedQuery(inMemoryTransaction, query);
+	}
+
+	@Override
+	public Transaction beginTransaction() {
+		return beginTransaction(TransactionOptions.Builder.withDefaults());
+	}
+
+	@Override
+	public Transaction beginTransaction(TransactionOptions options) {
+		Deque<InMemoryTransaction> transactions = currentTransactions.get();
+		InMemoryTransaction transaction = new InMemoryTransaction(
+				Boolean.TRUE.equals(options.isXG()), transactions);
+		transactions.addFirst(transaction);
+
+		return transaction;
+	}
+
+	@Override
+	public Transaction getCurrentTransaction() {
+		Transaction transaction = currentTransactions.get().peekFirst();
+		if (transaction == null) {
+			throw new NoSuchElementException("There is no current transaction.");
+		}
+
+		return transaction;
+	}
+
+	@Override
+	public Transaction getCurrentTransaction(Transaction returnedIfNoTxn) {
+		Transaction transaction = currentTransactions.get().peekFirst();
+		return transaction == null ? returnedIfNoTxn : transaction;
+	}
+
+	@Override
+	public Collection<Transaction> getActiveTransactions() {
+		return new ArrayList<Transaction>(currentTransactions.get());
+	}
+
+	@Override
+	public KeyRange allocateIds(String kind, long num) {
+		return allocateIds(null, kind, num);
+	}
+
+	@Override
+	public KeyRange allocateIds(Key parent, String kind, long num) {
+		if (num <= 0) {
+			throw new IllegalArgumentException("'num' must be positive.");
+		}
+		simulateLatency();
+
+		long end = idSequence.addAndGet(num);
+		return new KeyRange(parent, kind, end - num + 1, end);
+	}
+
+	@Override
+	public KeyRangeState allocateIdRange(KeyRange range) {
+		simulateLatency();
+
+		long end = range.getEnd().getId();
+		for (long current = idSequence.get(); current < end; current = idSequence
+				.get()) {
+			if (idSequence.compareAndSet(current, end)) {
+				break;
+			}
+		}
+
+		boolean collision = !getEntities(range.getStart().getKind()).subMap(
+				range.getStart(), true, range.getEnd(), true).isEmpty();
+		return collision ? KeyRangeState.COLLISION : KeyRangeState.EMPTY;
+	}
+
+	@Override
+	public DatastoreAttributes getDatastoreAttributes() {
+		// The attributes only depend on the application of the current
+		// environment. They are built locally with the constructor the real
+		// service uses, which is not public.
+		try {
+			Constructor<DatastoreAttributes> constructor = DatastoreAttributes.class
+					.getDeclaredConstructor();
+			constructor.setAccessible(true);
+
+			return constructor.newInstance();
+		} catch (NoSuchMethodException | InstantiationException
+				| IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException(
+					"The datastore attributes could not be built.", e);
+		}
+	}
+
+	@Override
+	public Map<Index, Index.IndexState> getIndexes() {
+		return Collections.emptyMap();
+	}
+
+	private ConcurrentSkipListMap<Key, Entity> getEntities(String kind) {
+		ConcurrentSkipListMap<Key, Entity> entities = kindsToEntities.get(kind);
+		if (entities == null) {
+			ConcurrentSkipListMap<Key, Entity> newEntities = new ConcurrentSkipListMap<Key, Entity>();
+			entities = kindsToEntities.putIfAbsent(kind, newEntities);
+			if (entities == null) {
+				entities = newEntities;
+			}
+		}
+
+		return entities;
+	}
+
+	private Entity complete(Entity entity) {
+		Key key = entity.getKey();
+		if (key.isComplete()) {
+			return entity.clone();
+		}
+
+		// The key of the given entity cannot be completed in place, so the
+		// returned keys are the only way to learn the assigned ids.
+		long id = idSequence.incrementAndGet();
+		Key completeKey = key.getParent() == null ? KeyFactory.createKey(
+				key.getKind(), id) : KeyFactory.createKey(key.getParent(),
+				key.getKind(), id);
+
+		Entity completeEntity = new Entity(completeKey);
+		completeEntity.setPropertiesFrom(entity);
+
+		return completeEntity;
+	}
+
+	private void write(Collection<Entity> entities, Collection<Key> deletedKeys) {
+		Set<Key> groupKeys = new HashSet<Key>();
+		for (Entity entity : entities) {
+			groupKeys.add(getEntityGroupKey(entity.getKey()));
+		}
+		for (Key key : deletedKeys) {
+			groupKeys.add(getEntityGroupKey(key));
+		}
+
+		List<ReentrantLock> acquiredLocks = lock(groupKeys);
+		try {
+			apply(entities, deletedKeys);
+			incrementVersions(groupKeys);
+		} finally {
+			unlock(acquiredLocks);
+		}
+	}
+
+	private void apply(Collection<Entity> entities, Collection<Key> deletedKeys) {
+		for (Entity entity : entities) {
+			getEntities(entity.getKind()).put(entity.getKey(), entity);
+		}
+		for (Key key : deletedKeys) {
+			getEntities(key.getKind()).remove(key);
+		}
+	}
+
+	private long getVersion(Key groupKey) {
+		Long version = groupVersions.get(groupKey);
+		return version == null ? 0 : version;
+	}
+
+	private void incrementVersions(Collection<Key> groupKeys) {
+		for (Key groupKey : groupKeys) {
+			groupVersions.put(groupKey, getVersion(groupKey) + 1);
+		}
+	}
+
+	private List<ReentrantLock> lock(Collection<Key> groupKeys) {
+		Set<Integer> indices = new TreeSet<Integer>();
+		for (Key groupKey : groupKeys) {
+			indices.add((groupKey.hashCode() & Integer.MAX_VALUE)
+					% locks.length);
+		}
+
+		// Locking in ascending order of stripes prevents deadlocks.
+		List<ReentrantLock> acquiredLocks = new ArrayList<ReentrantLock>();
+		for (int index : indices) {
+			locks[index].lock();
+			acquiredLocks.add(locks[index]);
+		}
+
+		return acquiredLocks;
+	}
+
+	private static void unlock(List<ReentrantLock> acquiredLocks) {
+		for (ReentrantLock lock : acquiredLocks) {
+			lock.unlock();
+		}
+	}
+
+	private InMemoryTransaction toInMemoryTransaction(Transaction transaction) {
+		if (transaction == null) {
+			return null;
+		}
+
+		if (!(transaction instanceof InMemoryTransaction)
+				|| ((InMemoryTransaction) transaction).getService() != this) {
+			throw new IllegalArgumentException(
+					"The transaction does not belong to this service.");
+		}
+
+		InMemoryTransaction inMemoryTransaction = (InMemoryTransaction) transaction;
+		inMemoryTransaction.checkActive();
+
+		return inMemoryTransaction;
+	}
+
+	private void simulateLatency() {
+		if (latencyMillis <= 0) {
+			return;
+		}
+
+		try {
+			Thread.sleep(latencyMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private QueryResults execute(InMemoryTransaction transaction, Query query,
+			FetchOptions fetchOptions) {
+		simulateLatency();
+
+		Key ancestor = query.getAncestor();
+		if (transaction != null) {
+			transaction.enlist(getEntityGroupKey(ancestor));
+		}
+
+		Filter filter = getFilter(query);
+		List<SortPredicate> sorts = query.getSortPredicates();
+		Collection<Projection> projections = query.getProjections();
+		boolean distinct = !projections.isEmpty() && query.getDistinct();
+		Entity startPosition = toPosition(fetchOptions.getStartCursor());
+		Entity endPosition = toPosition(fetchOptions.getEndCursor());
+		int offset = fetchOptions.getOffset() == null ? 0 : fetchOptions
+				.getOffset();
+		int maxSize = fetchOptions.getLimit() == null ? Integer.MAX_VALUE
+				: (int) Math.min(Integer.MAX_VALUE,
+						(long) offset + fetchOptions.getLimit());
+
+		// The entities of a kind are already ordered by keys, so queries
+		// ordered by keys are answered by scanning from the start position.
+		boolean keyOrdered = query.getKind() != null && isKeyOrdered(sorts)
+				&& !distinct;
+		Key startKey = keyOrdered && startPosition != null ? startPosition
+				.getKey() : null;
+
+		Collection<ConcurrentSkipListMap<Key, Entity>> entityMaps = query
+				.getKind() == null ? kindsToEntities.values() : Collections
+				.singletonList(getEntities(query.getKind()));
+
+		List<Entity> entities = new ArrayList<Entity>();
+		for (ConcurrentSkipListMap<Key, Entity> entityMap : entityMaps) {
+			for (Entity entity : narrow(entityMap, filter, startKey).values()) {
+				if (ancestor != null && !isAncestor(ancestor, entity.getKey())) {
+					continue;
+				}
+				if (filter != null && !matches(filter, entity)) {
+					continue;
+				}
+				if (!hasIndexedValues(entity, sorts)
+						|| !hasProjectedValues(entity, projections)) {
+					continue;
+				}
+				// Rows before the start position still hide equal rows of
+				// distinct queries.
+				if (!distinct && startPosition != null
+						&& comparePosition(entity, startPosition, sorts) <= 0) {
+					continue;
+				}
+				if (endPosition != null
+						&& comparePosition(entity, endPosition, sorts) > 0) {
+					if (keyOrdered) {
+						break;
+					}
+					continue;
+				}
+
+				entities.add(entity);
+				if (keyOrdered && entities.size() >= maxSize) {
+					break;
+				}
+			}
+		}
+
+		if (distinct) {
+			Collections.sort(entities, createComparator(sorts));
+			entities = removeDuplicates(entities, projections, startPosition,
+					sorts);
+		} else if (!keyOrdered) {
+			entities = selectFirst(entities, createComparator(sorts), maxSize);
+		}
+
+		int fromIndex = Math.min(offset, entities.size());
+		Cursor startCursor = fromIndex > 0 ? toCursor(
+				entities.get(fromIndex - 1), sorts) : fetchOptions
+				.getStartCursor();
+		if (startCursor == null) {
+			startCursor = toCursor(null, sorts);
+		}
+
+		return new QueryResults(query, sorts, entities.subList(fromIndex,
+				Math.min(entities.size(), maxSize)), startCursor);
+	}
+
+	private static boolean isKeyOrdered(List<SortPredicate> sorts) {
+		if (sorts.isEmpty()) {
+			return true;
+		}
+
+		SortPredicate sort = sorts.get(0);
+		return sorts.size() == 1
+				&& Entity.KEY_RESERVED_PROPERTY.equals(sort.getPropertyName())
+				&& sort.getDirection() == SortDirection.ASCENDING;
+	}
+
+	// Narrows the entities to the range of keys allowed by the '__key__'
+	// filters and the start key.
+	private static NavigableMap<Key, Entity> narrow(
+			ConcurrentSkipListMap<Key, Entity> entities, Filter filter,
+			Key startKey) {
+		Key lowerKey = startKey;
+		boolean lowerInclusive = false;
+		Key upperKey = null;
+		boolean upperInclusive = false;
+
+		for (FilterPredicate predicate : getConjuncts(filter)) {
+			if (!Entity.KEY_RESERVED_PROPERTY.equals(predicate
+					.getPropertyName())
+					|| !(predicate.getValue() instanceof Key)) {
+				continue;
+			}
+
+			Key key = (Key) predicate.getValue();
+			FilterOperator operator = predicate.getOperator();
+			boolean lower = operator == FilterOperator.EQUAL
+					|| operator == FilterOperator.GREATER_THAN
+					|| operator == FilterOperator.GREATER_THAN_OR_EQUAL;
+			boolean upper = operator == FilterOperator.EQUAL
+					|| operator == FilterOperator.LESS_THAN
+					|| operator == FilterOperator.LESS_THAN_OR_EQUAL;
+			boolean inclusive = operator != FilterOperator.GREATER_THAN
+					&& operator != FilterOperator.LESS_THAN;
+
+			if (lower) {
+				int result = lowerKey == null ? 1 : key.compareTo(lowerKey);
+				if (result > 0 || (result == 0 && !inclusive)) {
+					lowerKey = key;
+					lowerInclusive = inclusive;
+				}
+			}
+			if (upper) {
+				int result = upperKey == null ? -1 : key.compareTo(upperKey);
+				if (result < 0 || (result == 0 && !inclusive)) {
+					upperKey = key;
+					upperInclusive = inclusive;
+				}
+			}
+		}
+
+		if (lowerKey != null && upperKey != null) {
+			int result = lowerKey.compareTo(upperKey);
+			if (result > 0
+					|| (result == 0 && !(lowerInclusive && upperInclusive))) {
+				return new TreeMap<Key, Entity>();
+			}
+
+			return entities.subMap(lowerKey, lowerInclusive, upperKey,
+					upperInclusive);
+		}
+		if (lowerKey != null) {
+			return entities.tailMap(lowerKey, lowerInclusive);
+		}
+		if (upperKey != null) {
+			return entities.headMap(upperKey, upperInclusive);
+		}
+
+		return entities;
+	}
+
+	private static List<FilterPredicate> getConjuncts(Filter filter) {
+		List<FilterPredicate> conjuncts = new ArrayList<FilterPredicate>();
+		if (filter instanceof FilterPredicate) {
+			conjuncts.add((FilterPredicate) filter);
+		} else if (filter instanceof CompositeFilter
+				&& ((CompositeFilter) filter).getOperator() == CompositeFilterOperator.AND) {
+			for (Filter subFilter : ((CompositeFilter) filter).getSubFilters()) {
+				conjuncts.addAll(getConjuncts(subFilter));
+			}
+		}
+
+		return conjuncts;
+	}
+
+	// Keeps only the first 'maxSize' entities in order, which avoids sorting
+	// all the entities for a page.
+	private static List<Entity> selectFirst(List<Entity> entities,
+			Comparator<Entity> comparator, int maxSize) {
+		if (entities.size() <= maxSize) {
+			Collections.sort(entities, comparator);
+			return entities;
+		}
+
+		PriorityQueue<Entity> queue = new PriorityQueue<Entity>(maxSize + 1,
+				Collections.reverseOrder(comparator));
+		for (Entity entity : entities) {
+			if (queue.size() < maxSize) {
+				queue.add(entity);
+			} else if (maxSize > 0
+					&& comparator.compare(entity, queue.peek()) < 0) {
+				queue.poll();
+				queue.add(entity);
+			}
+		}
+
+		List<Entity> selectedEntities = new ArrayList<Entity>(queue);
+		Collections.sort(selectedEntities, comparator);
+
+		return selectedEntities;
+	}
+
+	private static List<Entity> removeDuplicates(List<Entity> entities,
+			Collection<Projection> projections, Entity startPosition,
+			List<SortPredicate> sorts) {
+		List<Entity> results = new ArrayList<Entity>();
+		Set<List<Object>> projectedValues = new HashSet<List<Object>>();
+		for (Entity entity : entities) {
+			if (!projectedValues.add(getProjectedValues(entity, projections))) {
+				continue;
+			}
+			if (startPosition != null
+					&& comparePosition(entity, startPosition, sorts) <= 0) {
+				continue;
+			}
+
+			results.add(entity);
+		}
+
+		return results;
+	}
+
+	private static boolean hasProjectedValues(Entity entity,
+			Collection<Projection> projections) {
+		for (Projection projection : projections) {
+			if (getIndexedValues(entity, projection.getName()).isEmpty()) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	// A multi-valued property is projected to its first value rather than to
+	// one result per value.
+	private static List<Object> getProjectedValues(Entity entity,
+			Collection<Projection> projections) {
+		List<Object> values = new ArrayList<Object>();
+		for (Projection projection : projections) {
+			values.add(getIndexedValues(entity, projection.getName()).get(0));
+		}
+
+		return values;
+	}
+
+	private static Entity toResult(Entity entity, Query query) {
+		Collection<Projection> projections = query.getProjections();
+		if (!projections.isEmpty()) {
+			Entity result = new Entity(entity.getKey());
+			Iterator<Object> values = getProjectedValues(entity, projections)
+					.iterator();
+			for (Projection projection : projections) {
+				result.setProperty(projection.getName(), values.next());
+			}
+
+			return result;
+		}
+
+		return query.isKeysOnly() ? new Entity(entity.getKey()) : entity
+				.clone();
+	}
+
+	@SuppressWarnings("deprecation")
+	private static Filter getFilter(Query query) {
+		List<Filter> filters = new ArrayList<Filter>();
+		if (query.getFilter() != null) {
+			filters.add(query.getFilter());
+		}
+		filters.addAll(query.getFilterPredicates());
+
+		if (filters.isEmpty()) {
+			return null;
+		}
+
+		return filters.size() == 1 ? filters.get(0) : CompositeFilterOperator
+				.and(filters);
+	}
+
+	private static boolean matches(Filter filter, Entity entity) {
+		if (filter instanceof CompositeFilter) {
+			CompositeFilter compositeFilter = (CompositeFilter) filter;
+			boolean and = compositeFilter.getOperator() == CompositeFilterOperator.AND;
+			for (Filter subFilter : compositeFilter.getSubFilters()) {
+				if (matches(subFilter, entity) != and) {
+					return !and;
+				}
+			}
+
+			return and;
+		}
+
+		if (filter instanceof FilterPredicate) {
+			FilterPredicate predicate = (FilterPredicate) filter;
+			for (Object value : getIndexedValues(entity,
+					predicate.getPropertyName())) {
+				if (matches(predicate.getOperator(), value,
+						predicate.getValue())) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		throw new IllegalArgumentException("Unsupported filter: " + filter);
+	}
+
+	private static boolean matches(FilterOperator operator, Object value,
+			Object operand) {
+		switch (operator) {
+		case EQUAL:
+			return compareValues(value, operand) == 0;
+		case NOT_EQUAL:
+			return compareValues(value, operand) != 0;
+		case LESS_THAN:
+			return compareValues(value, operand) < 0;
+		case LESS_THAN_OR_EQUAL:
+			return compareValues(value, operand) <= 0;
+		case GREATER_THAN:
+			return compareValues(value, operand) > 0;
+		case GREATER_THAN_OR_EQUAL:
+			return compareValues(value, operand) >= 0;
+		case IN:
+			for (Object element : (Collection<?>) operand) {
+				if (compareValues(value, element) == 0) {
+					return true;
+				}
+			}
+			return false;
+		default:
+			throw new IllegalArgumentException("Unsupported operator: "
+					+ operator);
+		}
+	}
+
+	private static boolean hasIndexedValues(Entity entity,
+			List<SortPredicate> sorts) {
+		for (SortPredicate sort : sorts) {
+			if (getIndexedValues(entity, sort.getPropertyName()).isEmpty()) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static List<Object> getIndexedValues(Entity entity,
+			String propertyName) {
+		if (Entity.KEY_RESERVED_PROPERTY.equals(propertyName)) {
+			return Collections.<Object> singletonList(entity.getKey());
+		}
+		if (Entity.SCATTER_RESERVED_PROPERTY.equals(propertyName)) {
+			return Collections.<Object> singletonList(entity.getKey()
+					.hashCode() * 0x9e3779b97f4a7c15L);
+		}
+		if (!entity.hasProperty(propertyName)
+				|| entity.isUnindexedProperty(propertyName)) {
+			return Collections.emptyList();
+		}
+
+		Object value = entity.getProperty(propertyName);
+		List<Object> values = new ArrayList<Object>();
+		if (value instanceof Collection) {
+			for (Object element : (Collection<?>) value) {
+				if (isIndexable(element)) {
+					values.add(element);
+				}
+			}
+		} else if (isIndexable(value)) {
+			values.add(value);
+		}
+
+		return values;
+	}
+
+	private static boolean isIndexable(Object value) {
+		return !(value instanceof Text || value instanceof Blob || value instanceof EmbeddedEntity);
+	}
+
+	private static Comparator<Entity> createComparator(
+			final List<SortPredicate> sorts) {
+		return new Comparator<Entity>() {
+			@Override
+			public int compare(Entity entity1, Entity entity2) {
+				for (SortPredicate sort : sorts) {
+					boolean descending = sort.getDirection() == SortDirection.DESCENDING;
+					int result = compareValues(
+							getSortValue(entity1, sort.getPropertyName(),
+									descending),
+							getSortValue(entity2, sort.getPropertyName(),
+									descending));
+					if (result != 0) {
+						return descending ? -result : result;
+					}
+				}
+
+				return entity1.getKey().compareTo(entity2.getKey());
+			}
+		};
+	}
+
+	private static Object getSortValue(Entity entity, String propertyName,
+			boolean descending) {
+		Object sortValue = null;
+		boolean first = true;
+		for (Object value : getIndexedValues(entity, propertyName)) {
+			int result = compareValues(value, sortValue);
+			if (first || (descending ? result > 0 : result < 0)) {
+				sortValue = value;
+				first = false;
+			}
+		}
+
+		return sortValue;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int compareValues(Object value1, Object value2) {
+		Object normalizedValue1 = normalize(value1);
+		Object normalizedValue2 = normalize(value2);
+
+		int rank1 = rank(normalizedValue1);
+		int rank2 = rank(normalizedValue2);
+		if (rank1 != rank2) {
+			return rank1 < rank2 ? -1 : 1;
+		}
+
+		if (normalizedValue1 == null) {
+			return 0;
+		}
+		// The other types share the last rank, so they are ordered by type
+		// before they are compared.
+		Class<?> type1 = normalizedValue1.getClass();
+		Class<?> type2 = normalizedValue2.getClass();
+		if (type1 != type2) {
+			return type1.getName().compareTo(type2.getName());
+		}
+		if (normalizedValue1 instanceof Comparable) {
+			return ((Comparable<Object>) normalizedValue1)
+					.compareTo(normalizedValue2);
+		}
+
+		return normalizedValue1.toString().compareTo(
+				normalizedValue2.toString());
+	}
+
+	private static Object normalize(Object value) {
+		if (value instanceof Integer || value instanceof Short
+				|| value instanceof Byte) {
+			return ((Number) value).longValue();
+		}
+		if (value instanceof Float) {
+			return ((Float) value).doubleValue();
+		}
+		if (value instanceof Date) {
+			return ((Date) value).getTime() * 1000;
+		}
+
+		return value;
+	}
+
+	// Follows the order of value types in the datastore.
+	private static int rank(Object value) {
+		if (value == null) {
+			return 0;
+		}
+		if (value instanceof Long) {
+			return 1;
+		}
+		if (value instanceof Boolean) {
+			return 2;
+		}
+		if (value instanceof String) {
+			return 3;
+		}
+		if (value instanceof Double) {
+			return 4;
+		}
+		if (value instanceof Key) {
+			return 5;
+		}
+
+		return 6;
+	}
+
+	private static boolean isAncestor(Key ancestor, Key key) {
+		for (Key current = key; current != null; current = current.getParent()) {
+			if (current.equals(ancestor)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static Key getEntityGroupKey(Key key) {
+		Key groupKey = key;
+		while (groupKey.getParent() != null) {
+			groupKey = groupKey.getParent();
+		}
+
+		return groupKey;
+	}
+
+	private static void checkComplete(Key key) {
+		if (!key.isComplete()) {
+			throw new IllegalArgumentException("The key is incomplete: " + key);
+		}
+	}
+
+	// A cursor holds the key and the sort values of the last entity, so that
+	// the next page starts strictly after it even if entities are written
+	// in the meantime.
+	private static Cursor toCursor(Entity entity, List<SortPredicate> sorts) {
+		if (entity == null) {
+			return Cursor.fromByteArray(new byte[] { CURSOR_FORMAT_VERSION });
+		}
+
+		Entity position = new Entity(entity.getKey());
+		for (int i = 0; i < sorts.size(); i++) {
+			SortPredicate sort = sorts.get(i);
+			position.setProperty(
+					SORT_VALUE_PROPERTY_PREFIX + i,
+					getSortValue(entity, sort.getPropertyName(),
+							sort.getDirection() == SortDirection.DESCENDING));
+		}
+
+		byte[] bytes = EntityTranslator.convertToPb(position).toByteArray();
+		ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 1);
+		buffer.put(CURSOR_FORMAT_VERSION);
+		buffer.put(bytes);
+
+		return Cursor.fromByteArray(buffer.array());
+	}
+
+	private static Entity toPosition(Cursor cursor) {
+		if (cursor == null) {
+			return null;
+		}
+
+		byte[] bytes = cursor.toByteArray();
+		if (bytes.length == 0 || bytes[0] != CURSOR_FORMAT_VERSION) {
+			throw new IllegalArgumentException("Invalid cursor.");
+		}
+		if (bytes.length == 1) {
+			return null;
+		}
+
+		try {
+			return EntityTranslator.createFromPbBytes(Arrays.copyOfRange(
+					bytes, 1, bytes.length));
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Invalid cursor.", e);
+		}
+	}
+
+	private static int comparePosition(Entity entity, Entity position,
+			List<SortPredicate> sorts) {
+		for (int i = 0; i < sorts.size(); i++) {
+			SortPredicate sort = sorts.get(i);
+			boolean descending = sort.getDirection() == SortDirection.DESCENDING;
+			int result = compareValues(
+					getSortValue(entity, sort.getPropertyName(), descending),
+					position.getProperty(SORT_VALUE_PROPERTY_PREFIX + i));
+			if (result != 0) {
+				return descending ? -result : result;
+			}
+		}
+
+		return entity.getKey().compareTo(position.getKey());
+	}
+
+	private class InMemoryTransaction implements Transaction {
+		private final String id = Long.toString(transactionSequence
+				.incrementAndGet());
+		private final boolean crossGroup;
+		private final Deque<InMemoryTransaction> owner;
+
+		private final Map<Key, Long> enlistedGroupVersions = new LinkedHashMap<Key, Long>();
+		private final Map<Key, Entity> writtenEntities = new LinkedHashMap<Key, Entity>();
+		private volatile boolean active = true;
+
+		public InMemoryTransaction(boolean crossGroup,
+				Deque<InMemoryTransaction> owner) {
+			super();
+			this.crossGroup = crossGroup;
+			this.owner = owner;
+		}
+
+		private InMemoryDatastoreService getService() {
+			return InMemoryDatastoreService.this;
+		}
+
+		private void checkActive() {
+			if (!active) {
+				throw new IllegalStateException("The transaction is not active.");
+			}
+		}
+
+		private synchronized void enlist(Key groupKey) {
+			checkActive();
+			if (enlistedGroupVersions.containsKey(groupKey)) {
+				return;
+			}
+
+			if (!crossGroup && !enlistedGroupVersions.isEmpty()) {
+				throw new IllegalArgumentException(
+						"Cross-group transactions need to be specified by TransactionOptions.Builder.withXG.");
+			}
+			if (enlistedGroupVersions.size() >= MAX_ENTITY_GROUPS_PER_XG_TRANSACTION) {
+				throw new IllegalArgumentException(
+						"Too many entity groups in a single transaction.");
+			}
+
+			enlistedGroupVersions.put(groupKey, getVersion(groupKey));
+		}
+
+		private synchronized void put(Entity entity) {
+			enlist(getEntityGroupKey(entity.getKey()));
+			writtenEntities.put(entity.getKey(), entity);
+		}
+
+		private synchronized void delete(Key key) {
+			enlist(getEntityGroupKey(key));
+			writtenEntities.put(key, null);
+		}
+
+		@Override
+		public void commit() {
+			simulateLatency();
+
+			Map<Key, Long> versions;
+			List<Entity> entities = new ArrayList<Entity>();
+			List<Key> deletedKeys = new ArrayList<Key>();
+			Set<Key> writtenGroupKeys = new LinkedHashSet<Key>();
+			synchronized (this) {
+				checkActive();
+				active = false;
+
+				versions = new LinkedHashMap<Key, Long>(enlistedGroupVersions);
+				for (Map.Entry<Key, Entity> entry : writtenEntities.entrySet()) {
+					if (entry.getValue() == null) {
+						deletedKeys.add(entry.getKey());
+					} else {
+						entities.add(entry.getValue());
+					}
+					writtenGroupKeys.add(getEntityGroupKey(entry.getKey()));
+				}
+			}
+			owner.remove(this);
+
+			List<ReentrantLock> acquiredLocks = lock(versions.keySet());
+			try {
+				for (Map.Entry<Key, Long> entry : versions.entrySet()) {
+					if (getVersion(entry.getKey()) != entry.getValue()) {
+						throw new ConcurrentModificationException(
+								"Too much contention on these datastore entities.");
+					}
+				}
+
+				apply(entities, deletedKeys);
+				incrementVersions(writtenGroupKeys);
+			} finally {
+				unlock(acquiredLocks);
+			}
+		}
+
+		@Override
+		public Future<Void> commitAsync() {
+			FutureTask<Void> future = new FutureTask<Void>(new Runnable() {
+				@Override
+				public void run() {
+					commit();
+				}
+			}, null);
+			future.run();
+
+			return future;
+		}
+
+		@Override
+		public void rollback() {
+			synchronized (this) {
+				checkActive();
+				active = false;
+			}
+			owner.remove(this);
+		}
+
+		@Override
+		public Future<Void> rollbackAsync() {
+			FutureTask<Void> future = new FutureTask<Void>(new Runnable() {
+				@Override
+				public void run() {
+					rollback();
+				}
+			}, null);
+			future.run();
+
+			return future;
+		}
+
+		@Override
+		public String getId() {
+			return id;
+		}
+
+		@Override
+		public String getApp() {
+			return APP_ID;
+		}
+
+		@Override
+		public boolean isActive() {
+			return active;
+		}
+	}
+
+	private class InMemoryPreparedQuery implements PreparedQuery {
+		private final InMemoryTransaction transaction;
+		private final Query query;
+
+		public InMemoryPreparedQuery(InMemoryTransaction transaction,
+				Query query) {
+			super();
+			this.transaction = transaction;
+			this.query = query;
+		}
+
+		@Override
+		public List<Entity> asList(FetchOptions fetchOptions) {
+			return asQueryResultList(fetchOptions);
+		}
+
+		@Override
+		public QueryResultList<Entity> asQueryResultList(
+				FetchOptions fetchOptions) {
+			QueryResults results = execute(transaction, query, fetchOptions);
+
+			List<Entity> entities = new ArrayList<Entity>(results.size());
+			for (int i = 0; i < results.size(); i++) {
+				entities.add(results.getResult(i));
+			}
+
+			return new InMemoryQueryResultList(entities,
+					results.getCursor(entities.size()));
+		}
+
+		@Override
+		public Iterable<Entity> asIterable(FetchOptions fetchOptions) {
+			return asQueryResultIterable(fetchOptions);
+		}
+
+		@Override
+		public Iterable<Entity> asIterable() {
+			return asQueryResultIterable();
+		}
+
+		@Override
+		public QueryResultIterable<Entity> asQueryResultIterable(
+				final FetchOptions fetchOptions) {
+			return new QueryResultIterable<Entity>() {
+				@Override
+				public QueryResultIterator<Entity> iterator() {
+					return asQueryResultIterator(fetchOptions);
+				}
+			};
+		}
+
+		@Override
+		public QueryResultIterable<Entity> asQueryResultIterable() {
+			return asQueryResultIterable(FetchOptions.Builder.withDefaults());
+		}
+
+		@Override
+		public Iterator<Entity> asIterator(FetchOptions fetchOptions) {
+			return asQueryResultIterator(fetchOptions);
+		}
+
+		@Override
+		public Iterator<Entity> asIterator() {
+			return asQueryResultIterator();
+		}
+
+		@Override
+		public QueryResultIterator<Entity> asQueryResultIterator(
+				FetchOptions fetchOptions) {
+			return new InMemoryQueryResultIterator(execute(transaction, query,
+					fetchOptions));
+		}
+
+		@Override
+		public QueryResultIterator<Entity> asQueryResultIterator() {
+			return asQueryResultIterator(FetchOptions.Builder.withDefaults());
+		}
+
+		@Override
+		public Entity asSingleEntity() throws TooManyResultsException {
+			List<Entity> entities = asList(FetchOptions.Builder.withLimit(2));
+			if (entities.size() > 1) {
+				throw new TooManyResultsException();
+			}
+
+			return entities.isEmpty() ? null : entities.get(0);
+		}
+
+		@Override
+		public int countEntities(FetchOptions fetchOptions) {
+			return asQueryResultList(fetchOptions).size();
+		}
+
+		@Override
+		@Deprecated
+		public int countEntities() {
+			return countEntities(FetchOptions.Builder.withDefaults());
+		}
+	}
+
+	private static class InMemoryQueryResultList extends ArrayList<Entity>
+			implements QueryResultList<Entity> {
+		private static final long serialVersionUID = 1L;
+
+		private final Cursor cursor;
+
+		public InMemoryQueryResultList(List<Entity> entities, Cursor cursor) {
+			super(entities);
+			this.cursor = cursor;
+		}
+
+		@Override
+		public List<Index> getIndexList() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Cursor getCursor() {
+			return cursor;
+		}
+	}
+
+	private static class QueryResults {
+		private final Query query;
+		private final List<SortPredicate> sorts;
+		private final List<Entity> entities;
+		private final Cursor startCursor;
+
+		public QueryResults(Query query, List<SortPredicate> sorts,
+				List<Entity> entities, Cursor startCursor) {
+			super();
+			this.query = query;
+			this.sorts = sorts;
+			this.entities = entities;
+			this.startCursor = startCursor;
+		}
+
+		public int size() {
+			return entities.size();
+		}
+
+		public Entity getResult(int index) {
+			return toResult(entities.get(index), query);
+		}
+
+		public Cursor getCursor(int numberOfReturnedEntities) {
+			return numberOfReturnedEntities == 0 ? startCursor : toCursor(
+					entities.get(numberOfReturnedEntities - 1), sorts);
+		}
+	}
+
+	private static class InMemoryQueryResultIterator implements
+			QueryResultIterator<Entity> {
+		private final QueryResults results;
+		private int index;
+
+		public InMemoryQueryResultIterator(QueryResults results) {
+			super();
+			this.results = results;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index < results.size();
+		}
+
+		@Override
+		public Entity next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			return results.getResult(index++);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public List<Index> getIndexList() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Cursor getCursor() {
+			return results.getCursor(index);
+		}
+	}
+}
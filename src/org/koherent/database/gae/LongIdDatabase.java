@@ -1,13 +1,33 @@
 package org.koherent.database.gae;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.koherent.database.DatabaseException;
+import org.koherent.database.DuplicateIdException;
 import org.koherent.database.Value;
 
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.KeyRange;
 
 public abstract class LongIdDatabase<V extends Value<Long>> extends
 		Database<Long, V> {
+	private static final int REFILL_THRESHOLD_DIVISOR = 4;
+
+	private final Object idLock = new Object();
+	private long nextId;
+	private long endId = -1;
+	private Future<KeyRange> nextIdRange;
+
 	@Override
 	protected Long toId(Key key) {
 		return key.getId();
@@ -25,4 +45,163 @@ public abstract class LongIdDatabase<V extends Value<Long>> extends
 	protected Entity createEntity(Long id) {
 		return id == null ? createNewEntity() : new Entity(toKey(id));
 	}
+
+	@Override
+	protected V add(DatastoreService datastore, V value)
+			throws DuplicateIdException, DatabaseException {
+		if (value.getId() != null || getIdAllocationSize() <= 0) {
+			return super.add(datastore, value);
+		}
+
+		// An allocated id is never handed out twice, so neither a duplicate
+		// check nor a transaction is necessary.
+		V newValue = assignId(value, allocateIds(datastore, 1).get(0));
+		put(datastore, newValue);
+
+		return newValue;
+	}
+
+	public List<Long> addAll(Iterable<? extends V> values)
+			throws DuplicateIdException, DatabaseException {
+		List<Long> ids = new ArrayList<Long>();
+		for (V value : addAll(getDatastoreService(), values)) {
+			ids.add(value.getId());
+		}
+
+		return ids;
+	}
+
+	protected List<V> addAll(DatastoreService datastore,
+			Iterable<? extends V> values) throws DuplicateIdException,
+			DatabaseException {
+		List<V> valueList = new ArrayList<V>();
+		List<V> givenValues = new ArrayList<V>();
+		for (V value : values) {
+			valueList.add(value);
+			if (value.getId() != null) {
+				givenValues.add(value);
+			}
+		}
+
+		// Values with given ids are checked and written in transactions.
+		// Allocated ids are never handed out twice, so the other values are
+		// just put.
+		if (!givenValues.isEmpty()) {
+			addInTransactions(datastore, givenValues);
+		}
+
+		Iterator<Long> newIds = allocateIds(datastore,
+				valueList.size() - givenValues.size()).iterator();
+		List<V> newValues = new ArrayList<V>();
+		List<V> assignedValues = new ArrayList<V>();
+		for (V value : valueList) {
+			if (value.getId() == null) {
+				V assignedValue = assignId(value, newIds.next());
+				newValues.add(assignedValue);
+				assignedValues.add(assignedValue);
+			} else {
+				newValues.add(value);
+			}
+		}
+
+		if (!assignedValues.isEmpty()) {
+			put(datastore, assignedValues);
+		}
+
+		return newValues;
+	}
+
+	public List<Long> allocateIds(int count) throws DatabaseException {
+		return allocateIds(getDatastoreService(), count);
+	}
+
+	protected List<Long> allocateIds(final DatastoreService datastore,
+			int count) throws DatabaseException {
+		List<Long> ids = new ArrayList<Long>(count);
+		if (count <= 0) {
+			return ids;
+		}
+
+		final int allocationSize = getIdAllocationSize();
+		if (allocationSize <= 0) {
+			addIds(ids, allocateIdRange(datastore, count));
+			return ids;
+		}
+
+		synchronized (idLock) {
+			while (ids.size() < count) {
+				if (nextId > endId) {
+					KeyRange range = takeIdRange(datastore,
+							Math.max(allocationSize, count - ids.size()));
+					nextId = range.getStart().getId();
+					endId = range.getEnd().getId();
+				}
+
+				ids.add(nextId++);
+			}
+
+			if (nextIdRange == null
+					&& endId - nextId + 1 < allocationSize
+							/ REFILL_THRESHOLD_DIVISOR) {
+				// The next block is allocated by the given datastore on another
+				// thread, so that overridden datastores are respected.
+				FutureTask<KeyRange> task = new FutureTask<KeyRange>(
+						new Callable<KeyRange>() {
+							@Override
+							public KeyRange call() {
+								return datastore.allocateIds(getKind(),
+										allocationSize);
+							}
+						});
+				Thread thread = getThreadFactory().newThread(task);
+				if (thread != null) {
+					thread.start();
+					nextIdRange = task;
+				}
+			}
+		}
+
+		return ids;
+	}
+
+	protected int getIdAllocationSize() {
+		return 0;
+	}
+
+	private KeyRange takeIdRange(DatastoreService datastore, long size)
+			throws DatabaseException {
+		Future<KeyRange> future = nextIdRange;
+		nextIdRange = null;
+
+		if (future != null) {
+			try {
+				KeyRange range = future.get();
+				if (range.getSize() >= size) {
+					return range;
+				}
+			} catch (ExecutionException e) {
+				// Falls back to a synchronous allocation.
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new DatabaseException(e);
+			}
+		}
+
+		return allocateIdRange(datastore, size);
+	}
+
+	private KeyRange allocateIdRange(DatastoreService datastore, long size)
+			throws DatabaseException {
+		try {
+			return datastore.allocateIds(getKind(), size);
+		} catch (IllegalArgumentException | DatastoreFailureException e) {
+			throw new DatabaseException(e);
+		}
+	}
+
+	private static void addIds(List<Long> ids, KeyRange range) {
+		for (Key key : range) {
+			ids.add(key.getId());
+		}
+	}
 }
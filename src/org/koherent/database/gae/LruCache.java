@@ -0,0 +1,177 @@
+package org.koherent.database.gae;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LruCache<K, T> implements Cache<K, T> {
+	public static final long DEFAULT_EXPIRATION_MILLIS = 60 * 1000;
+
+	private static final int NUMBER_OF_GENERATIONS = 256;
+
+	private final long expirationMillis;
+	private final LinkedHashMap<K, CachedValue<T>> cachedValues;
+	// Guarded by 'cachedValues'. A write of a key advances the generation of
+	// its stripe, which makes reservations taken before the write stale.
+	private final long[] generations = new long[NUMBER_OF_GENERATIONS];
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	// Values are expired by default because writes on other instances
+	// cannot evict them.
+	public LruCache(int maxSize) {
+		this(maxSize, DEFAULT_EXPIRATION_MILLIS);
+	}
+
+	public LruCache(final int maxSize, long expirationMillis) {
+		super();
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("'maxSize' must be positive.");
+		}
+
+		this.expirationMillis = expirationMillis;
+		this.cachedValues = new LinkedHashMap<K, CachedValue<T>>(16, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<K, CachedValue<T>> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	@Override
+	public Map<K, T> getAll(Collection<K> keys) {
+		Map<K, T> values = new HashMap<K, T>();
+		long now = System.currentTimeMillis();
+
+		synchronized (cachedValues) {
+			for (K key : keys) {
+				CachedValue<T> cachedValue = cachedValues.get(key);
+				if (cachedValue == null) {
+					continue;
+				}
+
+				if (cachedValue.isExpired(now)) {
+					cachedValues.remove(key);
+					continue;
+				}
+
+				values.put(key, cachedValue.getValue());
+			}
+		}
+
+		hitCount.addAndGet(values.size());
+		missCount.addAndGet(keys.size() - values.size());
+
+		return values;
+	}
+
+	@Override
+	public void putAll(Map<K, T> values) {
+		long expirationTime = expirationMillis > 0 ? System
+				.currentTimeMillis() + expirationMillis : Long.MAX_VALUE;
+
+		synchronized (cachedValues) {
+			for (Map.Entry<K, T> entry : values.entrySet()) {
+				generations[generationIndex(entry.getKey())]++;
+				cachedValues.put(entry.getKey(), new CachedValue<T>(
+						entry.getValue(), expirationTime));
+			}
+		}
+	}
+
+	@Override
+	public void removeAll(Collection<K> keys) {
+		synchronized (cachedValues) {
+			for (K key : keys) {
+				generations[generationIndex(key)]++;
+				cachedValues.remove(key);
+			}
+		}
+	}
+
+	@Override
+	public Map<K, Object> reserveAll(Collection<K> keys) {
+		Map<K, Object> reservations = new HashMap<K, Object>();
+
+		synchronized (cachedValues) {
+			for (K key : keys) {
+				reservations.put(key, generations[generationIndex(key)]);
+			}
+		}
+
+		return reservations;
+	}
+
+	@Override
+	public void putAllIfReserved(Map<K, T> values,
+			Map<K, Object> reservations) {
+		long expirationTime = expirationMillis > 0 ? System
+				.currentTimeMillis() + expirationMillis : Long.MAX_VALUE;
+
+		synchronized (cachedValues) {
+			for (Map.Entry<K, T> entry : values.entrySet()) {
+				K key = entry.getKey();
+				Object reservation = reservations.get(key);
+				if (reservation == null
+						|| (Long) reservation != generations[generationIndex(key)]) {
+					continue;
+				}
+
+				cachedValues.put(key, new CachedValue<T>(entry.getValue(),
+						expirationTime));
+			}
+		}
+	}
+
+	public void clear() {
+		synchronized (cachedValues) {
+			cachedValues.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (cachedValues) {
+			return cachedValues.size();
+		}
+	}
+
+	@Override
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	@Override
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	private static int generationIndex(Object key) {
+		return (key.hashCode() & Integer.MAX_VALUE) % NUMBER_OF_GENERATIONS;
+	}
+
+	private static class CachedValue<T> {
+		private T value;
+		private long expirationTime;
+
+		public CachedValue(T value, long expirationTime) {
+			super();
+			this.value = value;
+			this.expirationTime = expirationTime;
+		}
+
+		public T getValue() {
+			return value;
+		}
+
+		public boolean isExpired(long now) {
+			return now >= expirationTime;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package org.koherent.database.gae;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.CasValues;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+public class MemcacheCache<K, T> implements Cache<K, T> {
+	private static final int RESERVATION_EXPIRATION_SECONDS = 30;
+
+	private MemcacheService memcache;
+	private Expiration expiration;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	public MemcacheCache(String namespace, int expirationSeconds) {
+		this(MemcacheServiceFactory.getMemcacheService(namespace),
+				expirationSeconds > 0 ? Expiration
+						.byDeltaSeconds(expirationSeconds) : null);
+	}
+
+	public MemcacheCache(MemcacheService memcache, Expiration expiration) {
+		super();
+		this.memcache = memcache;
+		this.expiration = expiration;
+	}
+
+	@Override
+	public Map<K, T> getAll(Collection<K> keys) {
+		Map<K, Object> cachedValues = memcache.getAll(keys);
+
+		Map<K, T> values = new HashMap<K, T>();
+		for (Map.Entry<K, Object> entry : cachedValues.entrySet()) {
+			if (entry.getValue() instanceof Reservation) {
+				continue;
+			}
+
+			@SuppressWarnings("unchecked")
+			T value = (T) entry.getValue();
+			values.put(entry.getKey(), value);
+		}
+
+		hitCount.addAndGet(values.size());
+		missCount.addAndGet(keys.size() - values.size());
+
+		return values;
+	}
+
+	@Override
+	public void putAll(Map<K, T> values) {
+		memcache.putAll(values, expiration);
+	}
+
+	@Override
+	public void removeAll(Collection<K> keys) {
+		memcache.deleteAll(keys);
+	}
+
+	@Override
+	public Map<K, Object> reserveAll(Collection<K> keys) {
+		Map<K, Reservation> markers = new HashMap<K, Reservation>();
+		for (K key : keys) {
+			markers.put(key, Reservation.INSTANCE);
+		}
+		memcache.putAll(markers,
+				Expiration.byDeltaSeconds(RESERVATION_EXPIRATION_SECONDS),
+				SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+
+		// A value put by another reader in the meantime is left as it is.
+		Map<K, Object> reservations = new HashMap<K, Object>();
+		for (Map.Entry<K, IdentifiableValue> entry : memcache
+				.getIdentifiables(keys).entrySet()) {
+			if (entry.getValue().getValue() instanceof Reservation) {
+				reservations.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		return reservations;
+	}
+
+	@Override
+	public void putAllIfReserved(Map<K, T> values,
+			Map<K, Object> reservations) {
+		// A write removes the reservation, which makes the compare-and-set
+		// fail.
+		Map<K, CasValues> casValues = new HashMap<K, CasValues>();
+		for (Map.Entry<K, T> entry : values.entrySet()) {
+			IdentifiableValue reservation = (IdentifiableValue) reservations
+					.get(entry.getKey());
+			if (reservation == null) {
+				continue;
+			}
+
+			casValues.put(entry.getKey(), expiration == null ? new CasValues(
+					reservation, entry.getValue()) : new CasValues(
+					reservation, entry.getValue(), expiration));
+		}
+
+		if (!casValues.isEmpty()) {
+			memcache.putIfUntouched(casValues);
+		}
+	}
+
+	@Override
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	@Override
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	private static class Reservation implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private static final Reservation INSTANCE = new Reservation();
+	}
+}
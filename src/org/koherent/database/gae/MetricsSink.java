@@ -0,0 +1,22 @@
+package org.koherent.database.gae;
+
+public interface MetricsSink {
+	public static final String GET = "get";
+	public static final String PUT = "put";
+	public static final String DELETE = "delete";
+	public static final String QUERY = "query";
+	public static final String ADD = "add";
+	public static final String UPDATE = "update";
+
+	public static final String ENTITY_CACHE = "entity";
+	public static final String VALUE_CACHE = "value";
+	public static final String NEGATIVE_CACHE = "negative";
+
+	public void recordOperation(String kind, String operation,
+			int numberOfEntities, long latencyNanos);
+
+	public void recordRetry(String kind, String operation);
+
+	public void recordCacheAccess(String kind, String cache, int hitCount,
+			int missCount);
+}
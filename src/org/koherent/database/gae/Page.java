@@ -0,0 +1,32 @@
+package org.koherent.database.gae;
+
+import java.util.Iterator;
+import java.util.List;
+
+public class Page<T> implements Iterable<T> {
+	private List<T> values;
+	private String endCursor;
+
+	public Page(List<T> values, String endCursor) {
+		super();
+		this.values = values;
+		this.endCursor = endCursor;
+	}
+
+	public List<T> getValues() {
+		return values;
+	}
+
+	public String getEndCursor() {
+		return endCursor;
+	}
+
+	public boolean hasNext() {
+		return endCursor != null;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return values.iterator();
+	}
+}
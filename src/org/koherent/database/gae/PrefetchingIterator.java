@@ -0,0 +1,216 @@
+package org.koherent.database.gae;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public abstract class PrefetchingIterator<S, T> implements Iterator<T>,
+		Closeable {
+	public static final long DEFAULT_MAX_IDLE_MILLIS = 60 * 1000;
+	private static final long POLL_INTERVAL_MILLIS = 1000;
+
+	private Iterator<? extends S> sourceIterator;
+	private int batchSize;
+	private ThreadFactory threadFactory;
+
+	private final BlockingQueue<Batch<T>> batches;
+	private final Batch<T> lastBatch = new Batch<T>(
+			Collections.<T> emptyList(), null);
+
+	private Thread thread;
+	// A batch which the producer could not hand over before it stopped.
+	private Batch<T> pendingBatch;
+	private volatile boolean closed;
+	private boolean finished;
+	private Iterator<T> batchIterator = Collections.<T> emptyList()
+			.iterator();
+
+	public PrefetchingIterator(Iterator<? extends S> sourceIterator,
+			int batchSize, int numberOfPrefetchedBatches,
+			ThreadFactory threadFactory) {
+		super();
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("'batchSize' must be positive.");
+		}
+
+		this.sourceIterator = sourceIterator;
+		this.batchSize = batchSize;
+		this.threadFactory = threadFactory;
+		this.batches = new ArrayBlockingQueue<Batch<T>>(Math.max(1,
+				numberOfPrefetchedBatches));
+	}
+
+	public synchronized void start() {
+		if (thread != null || closed) {
+			return;
+		}
+
+		thread = threadFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Batch<T> batch = takePendingBatch();
+					while (true) {
+						if (batch == null) {
+							batch = nextBatch();
+						}
+						if (!put(batch) || batch == lastBatch
+								|| batch.getFailure() != null) {
+							return;
+						}
+						batch = null;
+					}
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		thread.start();
+	}
+
+	private synchronized Batch<T> takePendingBatch() {
+		Batch<T> batch = pendingBatch;
+		pendingBatch = null;
+
+		return batch;
+	}
+
+	private Batch<T> nextBatch() {
+		try {
+			if (closed || !sourceIterator.hasNext()) {
+				return lastBatch;
+			}
+
+			List<T> values = new ArrayList<T>(batchSize);
+			while (values.size() < batchSize && sourceIterator.hasNext()) {
+				values.add(convert(sourceIterator.next()));
+			}
+
+			return new Batch<T>(values, null);
+		} catch (RuntimeException | Error e) {
+			return new Batch<T>(null, e);
+		}
+	}
+
+	// Stops the producer when the batch is not taken for a while, so that
+	// an iterator which is never closed does not block a thread forever.
+	// The producer is restarted when the iterator is used again.
+	private boolean put(Batch<T> batch) throws InterruptedException {
+		long startTime = System.currentTimeMillis();
+		while (!closed) {
+			if (batches.offer(batch, POLL_INTERVAL_MILLIS,
+					TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+
+			if (System.currentTimeMillis() - startTime >= getMaxIdleMillis()) {
+				synchronized (this) {
+					pendingBatch = batch;
+					thread = null;
+				}
+				return false;
+			}
+		}
+
+		return false;
+	}
+
+	protected long getMaxIdleMillis() {
+		return DEFAULT_MAX_IDLE_MILLIS;
+	}
+
+	protected abstract T convert(S source);
+
+	@Override
+	public boolean hasNext() {
+		while (!batchIterator.hasNext()) {
+			if (finished) {
+				return false;
+			}
+
+			Batch<T> batch;
+			try {
+				do {
+					start();
+					batch = batches.poll(POLL_INTERVAL_MILLIS,
+							TimeUnit.MILLISECONDS);
+				} while (batch == null);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+				throw new IllegalStateException(e);
+			}
+
+			if (batch == lastBatch) {
+				finished = true;
+				return false;
+			}
+
+			if (batch.getFailure() != null) {
+				close();
+				Throwable failure = batch.getFailure();
+				if (failure instanceof Error) {
+					throw (Error) failure;
+				}
+				throw (RuntimeException) failure;
+			}
+
+			batchIterator = batch.getValues().iterator();
+		}
+
+		return true;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		return batchIterator.next();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		finished = true;
+		batchIterator = Collections.<T> emptyList().iterator();
+
+		synchronized (this) {
+			if (thread != null) {
+				thread.interrupt();
+			}
+		}
+		batches.clear();
+	}
+
+	private static class Batch<T> {
+		private List<T> values;
+		private Throwable failure;
+
+		public Batch(List<T> values, Throwable failure) {
+			super();
+			this.values = values;
+			this.failure = failure;
+		}
+
+		public List<T> getValues() {
+			return values;
+		}
+
+		public Throwable getFailure() {
+			return failure;
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package org.koherent.database.gae;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Property {
+	public String name() default "";
+
+	public boolean indexed() default true;
+}
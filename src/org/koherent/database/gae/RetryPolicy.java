@@ -0,0 +1,107 @@
+package org.koherent.database.gae;
+
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+
+public class RetryPolicy {
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 20;
+	public static final long DEFAULT_MAX_BACKOFF_MILLIS = 1000;
+	public static final long DEFAULT_MAX_ELAPSED_MILLIS = 5000;
+	public static final double DEFAULT_JITTER = 0.5;
+
+	private int maxRetries;
+	private long initialBackoffMillis;
+	private long maxBackoffMillis;
+	private long maxElapsedMillis;
+	private double jitter;
+
+	private final AtomicLong retryCount = new AtomicLong();
+	private final AtomicLong exhaustedCount = new AtomicLong();
+	private final AtomicLong backoffMillis = new AtomicLong();
+
+	public RetryPolicy() {
+		this(DEFAULT_MAX_RETRIES, DEFAULT_INITIAL_BACKOFF_MILLIS,
+				DEFAULT_MAX_BACKOFF_MILLIS, DEFAULT_MAX_ELAPSED_MILLIS,
+				DEFAULT_JITTER);
+	}
+
+	public RetryPolicy(int maxRetries, long initialBackoffMillis,
+			long maxBackoffMillis, long maxElapsedMillis, double jitter) {
+		super();
+		if (jitter < 0.0 || jitter > 1.0) {
+			throw new IllegalArgumentException(
+					"'jitter' must be between 0.0 and 1.0.");
+		}
+
+		this.maxRetries = maxRetries;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+		this.maxElapsedMillis = maxElapsedMillis;
+		this.jitter = jitter;
+	}
+
+	public boolean isRetryable(RuntimeException exception) {
+		return exception instanceof ConcurrentModificationException
+				|| exception instanceof DatastoreTimeoutException;
+	}
+
+	public boolean shouldRetry(RuntimeException exception, int retryCount,
+			long startTimeMillis) {
+		if (!isRetryable(exception)) {
+			return false;
+		}
+
+		if (retryCount >= maxRetries
+				|| System.currentTimeMillis() - startTimeMillis >= maxElapsedMillis) {
+			exhaustedCount.incrementAndGet();
+			return false;
+		}
+
+		this.retryCount.incrementAndGet();
+		return true;
+	}
+
+	public long getBackoffMillis(int retryCount) {
+		if (retryCount <= 0 || initialBackoffMillis <= 0) {
+			return 0;
+		}
+
+		long backoff = initialBackoffMillis;
+		for (int i = 1; i < retryCount && backoff < maxBackoffMillis; i++) {
+			backoff *= 2;
+		}
+		backoff = Math.min(backoff, maxBackoffMillis);
+
+		return backoff
+				- (long) (backoff * jitter * ThreadLocalRandom.current()
+						.nextDouble());
+	}
+
+	public void backOff(int retryCount) throws InterruptedException {
+		long millis = getBackoffMillis(retryCount);
+		if (millis > 0) {
+			backoffMillis.addAndGet(millis);
+			Thread.sleep(millis);
+		}
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+	public long getExhaustedCount() {
+		return exhaustedCount.get();
+	}
+
+	public long getBackoffMillis() {
+		return backoffMillis.get();
+	}
+}
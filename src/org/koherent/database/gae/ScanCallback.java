@@ -0,0 +1,8 @@
+package org.koherent.database.gae;
+
+import java.util.List;
+
+public interface ScanCallback<V> {
+	public void process(ScanShard shard, List<? extends V> values)
+			throws Exception;
+}
@@ -0,0 +1,41 @@
+package org.koherent.database.gae;
+
+import java.io.Serializable;
+
+import com.google.appengine.api.datastore.Key;
+
+public class ScanShard implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private Key startKey;
+	private Key endKey;
+	private String cursor;
+	private boolean completed;
+
+	public ScanShard(Key startKey, Key endKey) {
+		super();
+		this.startKey = startKey;
+		this.endKey = endKey;
+	}
+
+	public Key getStartKey() {
+		return startKey;
+	}
+
+	public Key getEndKey() {
+		return endKey;
+	}
+
+	public synchronized String getCursor() {
+		return cursor;
+	}
+
+	public synchronized boolean isCompleted() {
+		return completed;
+	}
+
+	synchronized void advance(String cursor) {
+		this.cursor = cursor;
+		this.completed = cursor == null;
+	}
+}
@@ -0,0 +1,276 @@
+package org.koherent.database.gae;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.koherent.database.DatabaseException;
+import org.koherent.database.IllegalUpdateException;
+import org.koherent.database.Value;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+
+public abstract class ShardedCounterDatabase extends
+		StringIdDatabase<ShardedCounterDatabase.Shard> {
+	protected static final String COUNT_PROPERTY = "count";
+	protected static final String NUMBER_OF_SHARDS_PROPERTY = "numberOfShards";
+	protected static final String SHARD_ID_SEPARATOR = "#";
+
+	protected static final int DEFAULT_NUMBER_OF_SHARDS = 10;
+	protected static final int DEFAULT_MAX_NUMBER_OF_SHARDS = 1000;
+
+	private final ConcurrentMap<String, Integer> namesToNumbersOfShards = new ConcurrentHashMap<String, Integer>();
+
+	public long getCount(String name) throws DatabaseException {
+		return getCount(getDatastoreService(), name);
+	}
+
+	// The configuration is read in the same batch as the shards known to
+	// this instance. Shards added elsewhere are read by another batch.
+	protected long getCount(DatastoreService datastore, String name)
+			throws DatabaseException {
+		Key configKey = toConfigKey(name);
+		Integer cachedNumberOfShards = namesToNumbersOfShards.get(name);
+		int knownNumberOfShards = cachedNumberOfShards == null ? getDefaultNumberOfShards()
+				: cachedNumberOfShards;
+
+		List<Key> keys = new ArrayList<Key>(knownNumberOfShards + 1);
+		keys.add(configKey);
+		keys.addAll(toShardKeys(name, 0, knownNumberOfShards));
+
+		Map<Key, Entity> entities = new HashMap<Key, Entity>();
+		try {
+			entities.putAll(rpcGet(datastore, null, keys));
+
+			Entity config = entities.get(configKey);
+			int numberOfShards = config == null ? getDefaultNumberOfShards()
+					: toNumberOfShards(config);
+			namesToNumbersOfShards.put(name, numberOfShards);
+			if (numberOfShards > knownNumberOfShards) {
+				entities.putAll(rpcGet(datastore, null, toShardKeys(name,
+						knownNumberOfShards, numberOfShards)));
+			}
+		} catch (IllegalArgumentException | DatastoreFailureException e) {
+			throw new DatabaseException(e);
+		}
+		entities.remove(configKey);
+
+		long count = 0;
+		for (Entity entity : entities.values()) {
+			count += toValue(entity).getCount();
+		}
+
+		return count;
+	}
+
+	public void increment(String name, long delta) throws DatabaseException {
+		increment(getDatastoreService(), name, delta);
+	}
+
+	protected void increment(DatastoreService datastore, String name,
+			long delta) throws DatabaseException {
+		int numberOfShards = getNumberOfShards(datastore, name);
+		try {
+			incrementShard(datastore, name, numberOfShards, delta);
+		} catch (DatabaseException e) {
+			if (!(e.getCause() instanceof ConcurrentModificationException)
+					|| numberOfShards >= getMaxNumberOfShards()) {
+				throw e;
+			}
+
+			numberOfShards = increaseNumberOfShards(datastore, name,
+					numberOfShards * 2);
+			incrementShard(datastore, name, numberOfShards, delta);
+		}
+	}
+
+	private void incrementShard(DatastoreService datastore, String name,
+			int numberOfShards, final long delta) throws DatabaseException {
+		final String shardId = toShardId(name, ThreadLocalRandom.current()
+				.nextInt(numberOfShards));
+		try {
+			update(datastore, shardId, new Updater<Shard>() {
+				@Override
+				public Shard update(Shard shard) {
+					return new Shard(shardId, (shard == null ? 0 : shard
+							.getCount()) + delta);
+				}
+			});
+		} catch (IllegalUpdateException e) {
+			throw new Error("Never reaches here.");
+		}
+	}
+
+	public int getNumberOfShards(String name) throws DatabaseException {
+		return getNumberOfShards(getDatastoreService(), name);
+	}
+
+	protected int getNumberOfShards(DatastoreService datastore, String name)
+			throws DatabaseException {
+		Integer numberOfShards = namesToNumbersOfShards.get(name);
+		if (numberOfShards != null) {
+			return numberOfShards;
+		}
+
+		return loadNumberOfShards(datastore, name);
+	}
+
+	private int loadNumberOfShards(DatastoreService datastore, String name)
+			throws DatabaseException {
+		int numberOfShards;
+		try {
+			numberOfShards = toNumberOfShards(rpcGet(datastore, null,
+					toConfigKey(name)));
+		} catch (EntityNotFoundException e) {
+			numberOfShards = getDefaultNumberOfShards();
+		} catch (IllegalArgumentException | DatastoreFailureException e) {
+			throw new DatabaseException(e);
+		}
+
+		namesToNumbersOfShards.put(name, numberOfShards);
+
+		return numberOfShards;
+	}
+
+	public int increaseNumberOfShards(String name, int numberOfShards)
+			throws DatabaseException {
+		return increaseNumberOfShards(
+				getDatastoreService(), name, numberOfShards);
+	}
+
+	protected int increaseNumberOfShards(final DatastoreService datastore,
+			String name, final int numberOfShards) throws DatabaseException {
+		final Key configKey = toConfigKey(name);
+
+		int newNumberOfShards = runInTransaction(datastore,
+				new TransactionalOperation<Integer, RuntimeException>(
+						MetricsSink.UPDATE) {
+					@Override
+					Integer run(Transaction transaction)
+							throws DatabaseException {
+						Entity config;
+						int currentNumberOfShards;
+						try {
+							config = rpcGet(datastore, transaction, configKey);
+							currentNumberOfShards = toNumberOfShards(config);
+						} catch (EntityNotFoundException e) {
+							config = new Entity(configKey);
+							currentNumberOfShards = getDefaultNumberOfShards();
+						}
+
+						int newNumberOfShards = Math.max(currentNumberOfShards,
+								Math.min(numberOfShards, getMaxNumberOfShards()));
+						if (newNumberOfShards != currentNumberOfShards
+								|| !config.hasProperty(NUMBER_OF_SHARDS_PROPERTY)) {
+							config.setUnindexedProperty(
+									NUMBER_OF_SHARDS_PROPERTY,
+									(long) newNumberOfShards);
+							datastorePutEntities(datastore, transaction,
+									Collections.singletonList(config));
+						}
+
+						return newNumberOfShards;
+					}
+				});
+		namesToNumbersOfShards.put(name, newNumberOfShards);
+
+		return newNumberOfShards;
+	}
+
+	protected int getDefaultNumberOfShards() {
+		return DEFAULT_NUMBER_OF_SHARDS;
+	}
+
+	protected int getMaxNumberOfShards() {
+		return DEFAULT_MAX_NUMBER_OF_SHARDS;
+	}
+
+	protected String getConfigKind() {
+		return getKind() + "Config";
+	}
+
+	protected Key toConfigKey(String name) {
+		return KeyFactory.createKey(getConfigKind(), name);
+	}
+
+	protected String toShardId(String name, int index) {
+		return name + SHARD_ID_SEPARATOR + index;
+	}
+
+	protected List<String> toShardIds(String name, int numberOfShards) {
+		List<String> shardIds = new ArrayList<String>(numberOfShards);
+		for (int i = 0; i < numberOfShards; i++) {
+			shardIds.add(toShardId(name, i));
+		}
+
+		return shardIds;
+	}
+
+	private List<Key> toShardKeys(String name, int fromIndex, int toIndex) {
+		List<Key> shardKeys = new ArrayList<Key>(toIndex - fromIndex);
+		for (int i = fromIndex; i < toIndex; i++) {
+			shardKeys.add(toKey(toShardId(name, i)));
+		}
+
+		return shardKeys;
+	}
+
+	private int toNumberOfShards(Entity config) {
+		Long numberOfShards = (Long) config
+				.getProperty(NUMBER_OF_SHARDS_PROPERTY);
+
+		return numberOfShards == null ? getDefaultNumberOfShards()
+				: numberOfShards.intValue();
+	}
+
+	@Override
+	protected Shard toValue(Entity entity) {
+		if (entity == null) {
+			return null;
+		}
+
+		Long count = (Long) entity.getProperty(COUNT_PROPERTY);
+
+		return new Shard(toId(entity.getKey()), count == null ? 0 : count);
+	}
+
+	@Override
+	protected Entity toEntity(Shard shard) {
+		Entity entity = new Entity(toKey(shard.getId()));
+		setUnindexedPropertyIfNotNull(entity, COUNT_PROPERTY, shard.getCount());
+
+		return entity;
+	}
+
+	public static class Shard implements Value<String> {
+		private String id;
+		private long count;
+
+		public Shard(String id, long count) {
+			super();
+			this.id = id;
+			this.count = count;
+		}
+
+		@Override
+		public String getId() {
+			return id;
+		}
+
+		public long getCount() {
+			return count;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package org.koherent.database.gae;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class WriteBehindQueue<I, V> {
+	private int maxSize;
+	private long maxDelayMillis;
+
+	// Ordered by the time of the latest write of each id.
+	private final LinkedHashMap<I, Write<V>> idsToWrites = new LinkedHashMap<I, Write<V>>();
+
+	public WriteBehindQueue(int maxSize, long maxDelayMillis) {
+		super();
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("'maxSize' must be positive.");
+		}
+
+		this.maxSize = maxSize;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	public long getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+
+	public synchronized Write<V> get(I id) {
+		return idsToWrites.get(id);
+	}
+
+	public synchronized void put(I id, V value) {
+		add(id, new Write<V>(value));
+	}
+
+	public synchronized void remove(I id) {
+		add(id, new Write<V>(null));
+	}
+
+	private void add(I id, Write<V> write) {
+		idsToWrites.remove(id);
+		idsToWrites.put(id, write);
+	}
+
+	public synchronized void discard(I id) {
+		idsToWrites.remove(id);
+	}
+
+	public synchronized boolean isEmpty() {
+		return idsToWrites.isEmpty();
+	}
+
+	public synchronized int size() {
+		return idsToWrites.size();
+	}
+
+	public synchronized boolean isFlushNeeded() {
+		if (idsToWrites.isEmpty()) {
+			return false;
+		}
+
+		long firstWriteTime = idsToWrites.values().iterator().next().writeTime;
+		return idsToWrites.size() >= maxSize
+				|| System.currentTimeMillis() - firstWriteTime >= maxDelayMillis;
+	}
+
+	// Writes stay in the queue until they are applied, so that they are
+	// visible to reads while they are being flushed.
+	public synchronized Map<I, Write<V>> snapshot() {
+		return new LinkedHashMap<I, Write<V>>(idsToWrites);
+	}
+
+	// Removes the applied writes unless they were replaced or discarded
+	// while being flushed.
+	public synchronized void removeApplied(Map<I, Write<V>> writes) {
+		for (Map.Entry<I, Write<V>> entry : writes.entrySet()) {
+			if (idsToWrites.get(entry.getKey()) == entry.getValue()) {
+				idsToWrites.remove(entry.getKey());
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		idsToWrites.clear();
+	}
+
+	public static class Write<V> {
+		private V value;
+		private long writeTime;
+
+		public Write(V value) {
+			super();
+			this.value = value;
+			this.writeTime = System.currentTimeMillis();
+		}
+
+		public V getValue() {
+			return value;
+		}
+
+		public boolean isRemoval() {
+			return value == null;
+		}
+	}
+
+	public static class FlushResult {
+		private int numberOfPuts;
+		private int numberOfRemovals;
+		private List<Exception> failures;
+
+		public FlushResult(int numberOfPuts, int numberOfRemovals,
+				List<Exception> failures) {
+			super();
+			this.numberOfPuts = numberOfPuts;
+			this.numberOfRemovals = numberOfRemovals;
+			this.failures = Collections
+					.unmodifiableList(new ArrayList<Exception>(failures));
+		}
+
+		public int getNumberOfPuts() {
+			return numberOfPuts;
+		}
+
+		public int getNumberOfRemovals() {
+			return numberOfRemovals;
+		}
+
+		public List<Exception> getFailures() {
+			return failures;
+		}
+
+		public boolean isSuccessful() {
+			return failures.isEmpty();
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package org.koherent.database.gae;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.koherent.database.DatabaseException;
+import org.koherent.database.DuplicateIdException;
+import org.koherent.database.Value;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class BloomFilterTest {
+	private static final String KIND = "Item";
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+	private InMemoryDatastoreService datastore;
+	private ItemDatabase database;
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+		datastore = new InMemoryDatastoreService();
+		database = new ItemDatabase(datastore, true);
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void testMightContain() {
+		BloomFilter filter = new BloomFilter(100, 0.01);
+		filter.put(KeyFactory.createKey(KIND, 1));
+
+		assertTrue(filter.mightContain(KeyFactory.createKey(KIND, 1)));
+		filter.clear();
+		assertFalse(filter.mightContain(KeyFactory.createKey(KIND, 1)));
+	}
+
+	@Test
+	public void testSingleWriter() {
+		try {
+			database.rebuildBloomFilter();
+
+			Long id = database.add(new Item(null));
+			assertTrue(database.exists(id));
+
+			// An entity written by another writer is reported as absent until
+			// the filter is rebuilt.
+			datastore.put(new Entity(KeyFactory.createKey(KIND, 1000)));
+			assertFalse(database.exists(1000L));
+
+			// 'add' still reads it in its transaction.
+			try {
+				database.add(new Item(1000L));
+				fail("DuplicateIdException must be thrown.");
+			} catch (DuplicateIdException e) {
+				// The entity written by another writer is kept.
+			}
+
+			database.rebuildBloomFilter();
+			assertTrue(database.exists(1000L));
+		} catch (DuplicateIdException | DatabaseException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testMultipleWriters() {
+		ItemDatabase database = new ItemDatabase(datastore, false);
+
+		try {
+			database.rebuildBloomFilter();
+
+			// Without a single writer, the filter is not trusted.
+			datastore.put(new Entity(KeyFactory.createKey(KIND, 1000)));
+			assertTrue(database.exists(1000L));
+		} catch (DatabaseException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	private static class Item implements Value<Long> {
+		private Long id;
+
+		public Item(Long id) {
+			super();
+			this.id = id;
+		}
+
+		@Override
+		public Long getId() {
+			return id;
+		}
+	}
+
+	private static class ItemDatabase extends LongIdDatabase<Item> {
+		private final DatastoreService datastore;
+		private final boolean singleWriter;
+
+		public ItemDatabase(DatastoreService datastore, boolean singleWriter) {
+			super();
+			this.datastore = datastore;
+			this.singleWriter = singleWriter;
+		}
+
+		@Override
+		protected String getKind() {
+			return KIND;
+		}
+
+		@Override
+		protected DatastoreService getDatastoreService() {
+			return datastore;
+		}
+
+		@Override
+		protected BloomFilter createBloomFilter() {
+			return new BloomFilter(1000, 0.001);
+		}
+
+		@Override
+		protected boolean isSingleWriter() {
+			return singleWriter;
+		}
+
+		@Override
+		protected Item assignId(Item value, Long id) {
+			return new Item(id);
+		}
+
+		@Override
+		protected Item toValue(Entity entity) {
+			return entity == null ? null : new Item(toId(entity.getKey()));
+		}
+
+		@Override
+		protected Entity toEntity(Item value) {
+			return createEntity(value.getId());
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package org.koherent.database.gae;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.koherent.database.gae.CompositeIndex.ascending;
+import static org.koherent.database.gae.CompositeIndex.descending;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+
+public class CompositeIndexTest {
+	private static final List<FilterPredicate> NO_FILTERS = Collections
+			.emptyList();
+	private static final List<SortPredicate> NO_SORTS = Collections
+			.emptyList();
+
+	@Test
+	public void testBuiltInIndexes() {
+		// Queries on a single property or with only equality filters are
+		// served by the built-in indexes.
+		assertNull(CompositeIndex.getRequiredIndex(false, NO_FILTERS, NO_SORTS));
+		assertNull(CompositeIndex.getRequiredIndex(false,
+				Arrays.asList(greaterThan("a")), Arrays.asList(descending("a"))));
+		assertNull(CompositeIndex.getRequiredIndex(false,
+				Arrays.asList(equal("a"), equal("b")), NO_SORTS));
+		assertNull(CompositeIndex.getRequiredIndex(true,
+				Arrays.asList(equal("a"), equal("b")), NO_SORTS));
+	}
+
+	@Test
+	public void testEqualityPrefix() {
+		CompositeIndex index = CompositeIndex.getRequiredIndex(false,
+				Arrays.asList(equal("b"), in("a")),
+				Arrays.asList(descending("c")));
+
+		assertFalse(index.isAncestor());
+		assertEquals(
+				Arrays.asList(ascending("b"), ascending("a"), descending("c")),
+				index.getProperties());
+	}
+
+	@Test
+	public void testSortOnEqualityProperty() {
+		// A sort on a property with an equality filter does not change the
+		// order of the results.
+		CompositeIndex index = CompositeIndex.getRequiredIndex(false,
+				Arrays.asList(equal("a")),
+				Arrays.asList(descending("a"), ascending("b")));
+
+		assertEquals(Arrays.asList(ascending("a"), ascending("b")),
+				index.getProperties());
+	}
+
+	@Test
+	public void testInequalitySortedFirst() {
+		CompositeIndex index = CompositeIndex.getRequiredIndex(false,
+				Arrays.asList(equal("a"), greaterThan("b"), lessThan("b")),
+				NO_SORTS);
+		assertEquals(Arrays.asList(ascending("a"), ascending("b")),
+				index.getProperties());
+
+		index = CompositeIndex.getRequiredIndex(false,
+				Arrays.asList(greaterThan("b")),
+				Arrays.asList(descending("b"), ascending("c")));
+		assertEquals(Arrays.asList(descending("b"), ascending("c")),
+				index.getProperties());
+
+		try {
+			CompositeIndex.getRequiredIndex(false,
+					Arrays.asList(greaterThan("b")),
+					Arrays.asList(ascending("c")));
+			fail("IllegalArgumentException must be thrown.");
+		} catch (IllegalArgumentException e) {
+			// The inequality property must be sorted first.
+		}
+
+		try {
+			CompositeIndex.getRequiredIndex(false,
+					Arrays.asList(greaterThan("a"), lessThan("b")), NO_SORTS);
+			fail("IllegalArgumentException must be thrown.");
+		} catch (IllegalArgumentException e) {
+			// Inequality filters are allowed on only one property.
+		}
+	}
+
+	@Test
+	public void testKeySuffix() {
+		// Every index ends with the key in ascending order.
+		CompositeIndex index = CompositeIndex.getRequiredIndex(false,
+				Arrays.asList(equal("a")), Arrays.asList(ascending("b"),
+						ascending(Entity.KEY_RESERVED_PROPERTY)));
+		assertEquals(Arrays.asList(ascending("a"), ascending("b")),
+				index.getProperties());
+
+		index = CompositeIndex.getRequiredIndex(false,
+				Arrays.asList(equal("a")), Arrays.asList(ascending("b"),
+						descending(Entity.KEY_RESERVED_PROPERTY)));
+		assertEquals(Arrays.asList(ascending("a"), ascending("b"),
+				descending(Entity.KEY_RESERVED_PROPERTY)),
+				index.getProperties());
+
+		assertNull(CompositeIndex.getRequiredIndex(false,
+				Arrays.asList(equal("a")),
+				Arrays.asList(ascending(Entity.KEY_RESERVED_PROPERTY))));
+	}
+
+	@Test
+	public void testAncestor() {
+		// An ancestor query sorted by a single property needs an index.
+		CompositeIndex index = CompositeIndex.getRequiredIndex(true,
+				NO_FILTERS, Arrays.asList(descending("a")));
+
+		assertTrue(index.isAncestor());
+		assertEquals(Arrays.asList(descending("a")), index.getProperties());
+		assertNull(CompositeIndex.getRequiredIndex(false, NO_FILTERS,
+				Arrays.asList(descending("a"))));
+	}
+
+	@Test
+	public void testServes() {
+		CompositeIndex requiredIndex = CompositeIndex.getRequiredIndex(false,
+				Arrays.asList(equal("a"), equal("b")),
+				Arrays.asList(descending("c")));
+
+		// The equality properties may be in any order.
+		assertTrue(new CompositeIndex(false, ascending("a"), ascending("b"),
+				descending("c")).serves(requiredIndex));
+		assertTrue(new CompositeIndex(false, ascending("b"), ascending("a"),
+				descending("c")).serves(requiredIndex));
+
+		assertFalse(new CompositeIndex(false, ascending("a"), ascending("b"),
+				ascending("c")).serves(requiredIndex));
+		assertFalse(new CompositeIndex(false, ascending("a"), ascending("c"),
+				descending("b")).serves(requiredIndex));
+		assertFalse(new CompositeIndex(false, ascending("a"), descending("c"))
+				.serves(requiredIndex));
+		assertFalse(new CompositeIndex(true, ascending("a"), ascending("b"),
+				descending("c")).serves(requiredIndex));
+	}
+
+	@Test
+	public void testServesAncestor() {
+		CompositeIndex requiredIndex = CompositeIndex.getRequiredIndex(true,
+				Arrays.asList(equal("a")), Arrays.asList(ascending("b")));
+
+		assertTrue(new CompositeIndex(true, ascending("a"), ascending("b"))
+				.serves(requiredIndex));
+		assertFalse(new CompositeIndex(false, ascending("a"), ascending("b"))
+				.serves(requiredIndex));
+	}
+
+	private static FilterPredicate equal(String propertyName) {
+		return new FilterPredicate(propertyName, FilterOperator.EQUAL, 1L);
+	}
+
+	private static FilterPredicate in(String propertyName) {
+		return new FilterPredicate(propertyName, FilterOperator.IN,
+				Arrays.asList(1L, 2L));
+	}
+
+	private static FilterPredicate greaterThan(String propertyName) {
+		return new FilterPredicate(propertyName, FilterOperator.GREATER_THAN,
+				1L);
+	}
+
+	private static FilterPredicate lessThan(String propertyName) {
+		return new FilterPredicate(propertyName, FilterOperator.LESS_THAN, 9L);
+	}
+}
@@ -2,15 +2,38 @@ package org.koherent.database.gae;
 
 import org.koherent.database.Value;
 
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 
 public abstract class DatabaseTest<I, V extends Value<I>, D extends Database<I, V>>
 		extends org.koherent.database.DatabaseTest<I, V, D> {
+	private final InMemoryDatastoreService inMemoryDatastore = createInMemoryDatastoreService();
 	private final LocalServiceTestHelper helper = createLocalServiceTestHelper();
 
+	// Returning an InMemoryDatastoreService runs the tests on it instead of
+	// the local datastore. The databases under test need to return
+	// 'getDatastoreService' from their own 'getDatastoreService'.
+	protected InMemoryDatastoreService createInMemoryDatastoreService() {
+		return null;
+	}
+
 	protected LocalServiceTestHelper createLocalServiceTestHelper() {
-		return new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+		if (inMemoryDatastore != null) {
+			return new LocalServiceTestHelper(
+					new LocalMemcacheServiceTestConfig());
+		}
+
+		return new LocalServiceTestHelper(
+				new LocalDatastoreServiceTestConfig(),
+				new LocalMemcacheServiceTestConfig());
+	}
+
+	protected DatastoreService getDatastoreService() {
+		return inMemoryDatastore != null ? inMemoryDatastore
+				: DatastoreServiceFactory.getDatastoreService();
 	}
 
 	@Override
@@ -20,6 +43,9 @@ public abstract class DatabaseTest<I, V extends Value<I>, D extends Database<I,
 
 	@Override
 	protected void tearDownDatabase() {
+		if (inMemoryDatastore != null) {
+			inMemoryDatastore.clear();
+		}
 		helper.tearDown();
 	}
 }
@@ -0,0 +1,89 @@
+package org.koherent.database.gae;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class EntityCompressorTest {
+	private static final String COMPRESSED_PROPERTY_NAME = "_compressed";
+
+	// Keys need the application id of the current environment.
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+	private final EntityCompressor compressor = new EntityCompressor(
+			COMPRESSED_PROPERTY_NAME);
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void testRoundTrip() {
+		Entity entity = new Entity(KeyFactory.createKey("Item", 1));
+		entity.setProperty("name", "apple");
+		entity.setUnindexedProperty("description", new Text("A red fruit."));
+		entity.setUnindexedProperty("count", 3L);
+		entity.setUnindexedProperty("price", 1.5);
+		entity.setUnindexedProperty("date", new Date(1000L));
+		entity.setUnindexedProperty("tags", Arrays.asList("red", "sweet"));
+		entity.setUnindexedProperty("note", null);
+
+		Entity compressedEntity = compressor.compress(entity);
+		assertEquals("apple", compressedEntity.getProperty("name"));
+		assertFalse(compressedEntity.hasProperty("description"));
+		assertTrue(compressedEntity.getProperty(COMPRESSED_PROPERTY_NAME) instanceof Blob);
+
+		Entity decompressedEntity = compressor.decompress(compressedEntity);
+		assertEquals(entity.getKey(), decompressedEntity.getKey());
+		assertEquals(entity.getProperties(), decompressedEntity.getProperties());
+		assertFalse(decompressedEntity.isUnindexedProperty("name"));
+		assertTrue(decompressedEntity.isUnindexedProperty("description"));
+		assertTrue(decompressedEntity.hasProperty("note"));
+		assertNull(decompressedEntity.getProperty("note"));
+	}
+
+	@Test
+	public void testIndexedPropertiesOnly() {
+		Entity entity = new Entity(KeyFactory.createKey("Item", 1));
+		entity.setProperty("name", "apple");
+
+		Entity compressedEntity = compressor.compress(entity);
+		assertFalse(compressedEntity.hasProperty(COMPRESSED_PROPERTY_NAME));
+		assertEquals(entity.getProperties(),
+				compressor.decompress(compressedEntity).getProperties());
+	}
+
+	@Test
+	public void testUnsupportedFormat() {
+		Entity entity = new Entity(KeyFactory.createKey("Item", 1));
+		entity.setUnindexedProperty(COMPRESSED_PROPERTY_NAME, new Blob(
+				new byte[] { 1, 2, 3 }));
+
+		try {
+			compressor.decompress(entity);
+			fail("IllegalArgumentException must be thrown.");
+		} catch (IllegalArgumentException e) {
+			// Only the current format is decoded.
+		}
+	}
+}
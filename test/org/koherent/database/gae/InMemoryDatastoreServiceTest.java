@@ -0,0 +1,247 @@
+package org.koherent.database.gae;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class InMemoryDatastoreServiceTest {
+	private static final String KIND = "Item";
+	private static final String NUMBER = "number";
+	private static final int NUMBER_OF_ENTITIES = 50;
+	private static final int PAGE_SIZE = 7;
+
+	// Keys need the application id of the current environment.
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+	private InMemoryDatastoreService datastore;
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+		datastore = new InMemoryDatastoreService();
+
+		List<Entity> entities = new ArrayList<Entity>();
+		for (int i = 1; i <= NUMBER_OF_ENTITIES; i++) {
+			Entity entity = new Entity(KeyFactory.createKey(KIND, i));
+			entity.setProperty(NUMBER, (long) (i % 10));
+			entities.add(entity);
+		}
+		datastore.put(entities);
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void testPagingWhileRemoving() {
+		Query query = new Query(KIND).setKeysOnly();
+
+		int numberOfRemovedEntities = 0;
+		Cursor cursor = null;
+		while (true) {
+			FetchOptions options = FetchOptions.Builder.withLimit(PAGE_SIZE);
+			if (cursor != null) {
+				options.startCursor(cursor);
+			}
+
+			QueryResultList<Entity> page = datastore.prepare(query)
+					.asQueryResultList(options);
+			if (page.isEmpty()) {
+				break;
+			}
+
+			List<Key> keys = new ArrayList<Key>();
+			for (Entity entity : page) {
+				keys.add(entity.getKey());
+			}
+			datastore.delete(keys);
+			numberOfRemovedEntities += keys.size();
+			cursor = page.getCursor();
+		}
+
+		assertEquals(NUMBER_OF_ENTITIES, numberOfRemovedEntities);
+		assertTrue(datastore.prepare(new Query(KIND))
+				.asList(FetchOptions.Builder.withDefaults()).isEmpty());
+	}
+
+	@Test
+	public void testSortedPagingWhileAdding() {
+		Query query = new Query(KIND)
+				.addSort(NUMBER, SortDirection.DESCENDING);
+
+		Set<Key> keys = new HashSet<Key>();
+		Long lastNumber = null;
+		Cursor cursor = null;
+		for (int i = 0; true; i++) {
+			FetchOptions options = FetchOptions.Builder.withLimit(PAGE_SIZE);
+			if (cursor != null) {
+				options.startCursor(cursor);
+			}
+
+			QueryResultList<Entity> page = datastore.prepare(query)
+					.asQueryResultList(options);
+			if (page.isEmpty()) {
+				break;
+			}
+
+			for (Entity entity : page) {
+				Long number = (Long) entity.getProperty(NUMBER);
+				assertTrue(keys.add(entity.getKey()));
+				assertTrue(lastNumber == null || number <= lastNumber);
+				lastNumber = number;
+			}
+			cursor = page.getCursor();
+
+			// An entity sorted before the cursor is not returned.
+			Entity entity = new Entity(KeyFactory.createKey(KIND,
+					NUMBER_OF_ENTITIES + 1 + i));
+			entity.setProperty(NUMBER, 9L);
+			datastore.put(entity);
+		}
+
+		assertEquals(NUMBER_OF_ENTITIES, keys.size());
+	}
+
+	@Test
+	public void testIteratorCursor() {
+		Query query = new Query(KIND);
+
+		QueryResultIterator<Entity> iterator = datastore.prepare(query)
+				.asQueryResultIterator();
+		for (int i = 0; i < PAGE_SIZE; i++) {
+			iterator.next();
+		}
+
+		List<Entity> rest = datastore.prepare(query).asList(
+				FetchOptions.Builder.withStartCursor(iterator.getCursor()));
+		assertEquals(NUMBER_OF_ENTITIES - PAGE_SIZE, rest.size());
+		assertEquals(KeyFactory.createKey(KIND, PAGE_SIZE + 1), rest.get(0)
+				.getKey());
+	}
+
+	@Test
+	public void testFilters() {
+		Query query = new Query(KIND).setFilter(CompositeFilterOperator.and(
+				new FilterPredicate(NUMBER, FilterOperator.IN, Arrays.asList(
+						1L, 2L)), new FilterPredicate(
+						Entity.KEY_RESERVED_PROPERTY,
+						FilterOperator.GREATER_THAN, KeyFactory.createKey(KIND,
+								11)), new FilterPredicate(
+						Entity.KEY_RESERVED_PROPERTY,
+						FilterOperator.LESS_THAN_OR_EQUAL, KeyFactory
+								.createKey(KIND, 32))));
+
+		List<Key> keys = new ArrayList<Key>();
+		for (Entity entity : datastore.prepare(query).asIterable()) {
+			keys.add(entity.getKey());
+		}
+
+		assertEquals(Arrays.asList(KeyFactory.createKey(KIND, 12),
+				KeyFactory.createKey(KIND, 21), KeyFactory.createKey(KIND, 22),
+				KeyFactory.createKey(KIND, 31), KeyFactory.createKey(KIND, 32)),
+				keys);
+	}
+
+	@Test
+	public void testSortsWithOffsetAndLimit() {
+		Query query = new Query(KIND).addSort(NUMBER).addSort(
+				Entity.KEY_RESERVED_PROPERTY, SortDirection.DESCENDING);
+
+		List<Entity> entities = datastore.prepare(query).asList(
+				FetchOptions.Builder.withOffset(3).limit(4));
+
+		assertEquals(Arrays.asList(KeyFactory.createKey(KIND, 20),
+				KeyFactory.createKey(KIND, 10), KeyFactory.createKey(KIND, 41),
+				KeyFactory.createKey(KIND, 31)), getKeys(entities));
+	}
+
+	@Test
+	public void testSortsMixedTypes() {
+		Key geoPtKey = KeyFactory.createKey(KIND, NUMBER_OF_ENTITIES + 1);
+		Entity entity = new Entity(geoPtKey);
+		entity.setProperty(NUMBER, new GeoPt(1.0f, 2.0f));
+		datastore.put(entity);
+
+		Key userKey = KeyFactory.createKey(KIND, NUMBER_OF_ENTITIES + 2);
+		entity = new Entity(userKey);
+		entity.setProperty(NUMBER, new User("a@example.com", "example.com"));
+		datastore.put(entity);
+
+		// Types which share a rank are sorted by type without failing.
+		List<Key> keys = getKeys(datastore.prepare(
+				new Query(KIND).addSort(NUMBER, SortDirection.DESCENDING))
+				.asList(FetchOptions.Builder.withLimit(2)));
+
+		assertEquals(Arrays.asList(userKey, geoPtKey), keys);
+	}
+
+	@Test
+	public void testConcurrentModification() {
+		Key key = KeyFactory.createKey(KIND, 1);
+
+		Transaction transaction1 = datastore.beginTransaction();
+		Transaction transaction2 = datastore.beginTransaction();
+		try {
+			Entity entity1 = datastore.get(transaction1, key);
+			Entity entity2 = datastore.get(transaction2, key);
+
+			entity2.setProperty(NUMBER, 100L);
+			datastore.put(transaction2, entity2);
+			transaction2.commit();
+
+			entity1.setProperty(NUMBER, 200L);
+			datastore.put(transaction1, entity1);
+			try {
+				transaction1.commit();
+				fail("ConcurrentModificationException must be thrown.");
+			} catch (ConcurrentModificationException e) {
+				assertFalse(transaction1.isActive());
+			}
+
+			assertEquals(100L, datastore.get(key).getProperty(NUMBER));
+		} catch (EntityNotFoundException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	private static List<Key> getKeys(List<Entity> entities) {
+		List<Key> keys = new ArrayList<Key>();
+		for (Entity entity : entities) {
+			keys.add(entity.getKey());
+		}
+
+		return keys;
+	}
+}
@@ -1,12 +1,24 @@
 package org.koherent.database.gae;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 import org.junit.Test;
 import org.koherent.database.DatabaseException;
 import org.koherent.database.DuplicateIdException;
 import org.koherent.database.IdNotFoundException;
+import org.koherent.database.IllegalUpdateException;
 import org.koherent.database.Value;
 
 public abstract class LongIdDatabaseTest<V extends Value<Long>, D extends LongIdDatabase<V>>
@@ -29,4 +41,209 @@ public abstract class LongIdDatabaseTest<V extends Value<Long>, D extends LongId
 			fail(e.getMessage());
 		}
 	}
+
+	@Test
+	public void testAddAll() {
+		D database = getDatabase();
+
+		try {
+			List<Long> ids = database.addAll(Arrays.asList(createNewValue(),
+					createNewValue()));
+			assertEquals(2, ids.size());
+			assertTrue(database.exists(ids.get(0)));
+			assertTrue(database.exists(ids.get(1)));
+
+			V existingValue = database.get(ids.get(0));
+			try {
+				database.addAll(Arrays.asList(createNewValue(), existingValue));
+				fail("DuplicateIdException must be thrown.");
+			} catch (DuplicateIdException e) {
+				// The existing value is not overwritten.
+			}
+		} catch (DuplicateIdException | DatabaseException | IdNotFoundException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testGetPage() {
+		D database = getDatabase();
+
+		try {
+			for (int i = 0; i < 3; i++) {
+				database.add(createNewValue());
+			}
+
+			Page<? extends V> firstPage = database.get(2, null);
+			assertEquals(2, firstPage.getValues().size());
+			assertTrue(firstPage.hasNext());
+
+			Page<? extends V> secondPage = database.get(2,
+					firstPage.getEndCursor());
+			assertEquals(1, secondPage.getValues().size());
+			assertFalse(secondPage.hasNext());
+		} catch (DuplicateIdException | DatabaseException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testExists() {
+		D database = getDatabase();
+
+		try {
+			Long id = database.add(createNewValue());
+			Long removedId = database.add(createNewValue());
+			database.remove(removedId);
+
+			assertTrue(database.exists(id));
+			assertFalse(database.exists(removedId));
+
+			List<Long> existingIds = new ArrayList<Long>();
+			for (Long existingId : database.getExistingIds(Arrays.asList(
+					removedId, id, id))) {
+				existingIds.add(existingId);
+			}
+			assertEquals(Collections.singletonList(id), existingIds);
+		} catch (DuplicateIdException | DatabaseException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testUpdateIds() {
+		D database = getDatabase();
+
+		try {
+			Long id1 = database.add(createNewValue());
+			Long id2 = database.add(createNewValue());
+
+			Map<Long, V> newValues = database.update(Arrays.asList(id1, id2),
+					new LongIdDatabase.Updater<V>() {
+						@Override
+						public V update(V value) {
+							return null;
+						}
+					});
+			assertEquals(Arrays.asList(id1, id2),
+					new ArrayList<Long>(newValues.keySet()));
+			assertFalse(database.exists(id1));
+			assertFalse(database.exists(id2));
+		} catch (DuplicateIdException | DatabaseException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testUpdateIdsWithPut() {
+		D database = getDatabase();
+
+		try {
+			V value1 = createNewValue();
+			V value2 = createNewValue();
+			Long id1 = database.add(value1);
+			Long id2 = database.add(value2);
+
+			Map<Long, V> newValues = database.update(Arrays.asList(id1, id2),
+					new LongIdDatabase.Updater<V>() {
+						@Override
+						public V update(V value) {
+							return value;
+						}
+					});
+			assertEquals(id1, newValues.get(id1).getId());
+			assertEquals(id2, newValues.get(id2).getId());
+			assertTrue(equalsWithoutId(value1, database.get(id1)));
+			assertTrue(equalsWithoutId(value2, database.get(id2)));
+		} catch (DuplicateIdException | DatabaseException
+				| IdNotFoundException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testUpdateIdsWithNewValue() {
+		D database = getDatabase();
+
+		try {
+			Long removedId = database.add(createNewValue());
+			database.remove(removedId);
+
+			// As with a single id, a value without an id is added for a
+			// missing entity.
+			Map<Long, V> newValues = database.update(
+					Collections.singletonList(removedId),
+					new LongIdDatabase.Updater<V>() {
+						@Override
+						public V update(V value) {
+							return value == null ? createNewValue() : value;
+						}
+					});
+			assertTrue(database.exists(newValues.get(removedId).getId()));
+		} catch (DuplicateIdException | DatabaseException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testUpdateIdsWithIllegalUpdate() {
+		D database = getDatabase();
+
+		try {
+			Long id1 = database.add(createNewValue());
+			Long id2 = database.add(createNewValue());
+
+			try {
+				database.update(Arrays.asList(id1, id2),
+						new LongIdDatabase.Updater<V>() {
+							@Override
+							public V update(V value) {
+								return createNewValue();
+							}
+						});
+				fail("BatchUpdateException must be thrown.");
+			} catch (BatchUpdateException e) {
+				// The transaction is rolled back.
+				assertTrue(e.getUpdatedValues().isEmpty());
+				assertEquals(new HashSet<Long>(Arrays.asList(id1, id2)),
+						e.getFailures().keySet());
+				assertTrue(e.getFailures().get(id1) instanceof IllegalUpdateException);
+			}
+			assertTrue(database.exists(id1));
+			assertTrue(database.exists(id2));
+		} catch (DuplicateIdException | DatabaseException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testBatchLoader() {
+		D database = getDatabase();
+
+		try {
+			Long id = database.add(createNewValue());
+			Long removedId = database.add(createNewValue());
+			database.remove(removedId);
+
+			Database<Long, V>.BatchLoader loader = database.batchLoader();
+			Future<V> value = loader.get(id);
+			Future<Boolean> exists = loader.exists(removedId);
+			assertFalse(value.isDone());
+
+			assertEquals(id, value.get().getId());
+			assertTrue(exists.isDone());
+			assertFalse(exists.get());
+		} catch (DuplicateIdException | DatabaseException
+				| InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
 }
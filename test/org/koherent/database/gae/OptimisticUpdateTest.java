@@ -0,0 +1,155 @@
+package org.koherent.database.gae;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.koherent.database.DatabaseException;
+import org.koherent.database.IdNotFoundException;
+import org.koherent.database.IllegalUpdateException;
+import org.koherent.database.Value;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class OptimisticUpdateTest {
+	private static final String KIND = "Counter";
+	private static final String VERSION_PROPERTY_NAME = "_version";
+
+	// Keys need the application id of the current environment.
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+	private final InMemoryDatastoreService datastore = new InMemoryDatastoreService();
+	private final CounterDatabase database = new CounterDatabase();
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void testVersionIncremented() {
+		try {
+			database.put(new Counter("a", 0));
+			assertNull(getVersion("a"));
+
+			// The first update gives the entity a version.
+			database.updateOptimistic("a", new Increment());
+			assertEquals(Long.valueOf(1), getVersion("a"));
+
+			database.updateOptimistic("a", new Increment());
+			assertEquals(Long.valueOf(2), getVersion("a"));
+			assertEquals(2, database.get("a").getCount());
+		} catch (IllegalUpdateException | IdNotFoundException
+				| DatabaseException | EntityNotFoundException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testConcurrentUpdateDetected() {
+		try {
+			database.put(new Counter("a", 0));
+			database.updateOptimistic("a", new Increment());
+
+			database.updateOptimistic("a", new Increment() {
+				private boolean updatedConcurrently;
+
+				@Override
+				public Counter update(Counter counter) {
+					// Another update is applied after the value is read.
+					if (!updatedConcurrently) {
+						updatedConcurrently = true;
+						try {
+							database.updateOptimistic("a", new Increment());
+						} catch (IllegalUpdateException | DatabaseException e) {
+							throw new IllegalStateException(e);
+						}
+					}
+
+					return super.update(counter);
+				}
+			});
+
+			assertEquals(3, database.get("a").getCount());
+			assertEquals(Long.valueOf(3), getVersion("a"));
+		} catch (IllegalUpdateException | IdNotFoundException
+				| DatabaseException | EntityNotFoundException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	private Long getVersion(String id) throws EntityNotFoundException {
+		return (Long) datastore.get(KeyFactory.createKey(KIND, id))
+				.getProperty(VERSION_PROPERTY_NAME);
+	}
+
+	private static class Increment implements
+			StringIdDatabase.Updater<Counter> {
+		@Override
+		public Counter update(Counter counter) {
+			return new Counter(counter.getId(), counter.getCount() + 1);
+		}
+	}
+
+	private static class Counter implements Value<String> {
+		@Id
+		private String id;
+
+		@Property(indexed = false)
+		private long count;
+
+		@SuppressWarnings("unused")
+		private Counter() {
+			super();
+		}
+
+		public Counter(String id, long count) {
+			super();
+			this.id = id;
+			this.count = count;
+		}
+
+		@Override
+		public String getId() {
+			return id;
+		}
+
+		public long getCount() {
+			return count;
+		}
+	}
+
+	private class CounterDatabase extends StringIdDatabase<Counter> {
+		@Override
+		protected String getKind() {
+			return KIND;
+		}
+
+		@Override
+		protected Class<Counter> getValueClass() {
+			return Counter.class;
+		}
+
+		@Override
+		protected DatastoreService getDatastoreService() {
+			return datastore;
+		}
+
+		@Override
+		protected String getVersionPropertyName() {
+			return VERSION_PROPERTY_NAME;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package org.koherent.database.gae;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+import org.junit.Test;
+
+public class PrefetchingIteratorTest {
+	private static final int NUMBER_OF_VALUES = 10;
+	private static final long MAX_IDLE_MILLIS = 100;
+	private static final long JOIN_TIMEOUT_MILLIS = 10 * 1000;
+
+	@Test
+	public void testIteration() throws InterruptedException {
+		RecordingThreadFactory threadFactory = new RecordingThreadFactory();
+		PrefetchingIterator<Integer, String> iterator = createIterator(threadFactory);
+
+		assertEquals(createValues(), toList(iterator));
+		threadFactory.getLastThread().join(JOIN_TIMEOUT_MILLIS);
+		assertFalse(threadFactory.getLastThread().isAlive());
+	}
+
+	@Test
+	public void testAbandonedIterator() throws InterruptedException {
+		RecordingThreadFactory threadFactory = new RecordingThreadFactory();
+		PrefetchingIterator<Integer, String> iterator = createIterator(threadFactory);
+
+		List<String> values = new ArrayList<String>();
+		values.add(iterator.next());
+
+		// The producer stops although the iterator is never closed.
+		threadFactory.getLastThread().join(JOIN_TIMEOUT_MILLIS);
+		assertFalse(threadFactory.getLastThread().isAlive());
+
+		// The producer is restarted without losing values.
+		values.addAll(toList(iterator));
+		assertEquals(createValues(), values);
+	}
+
+	private static PrefetchingIterator<Integer, String> createIterator(
+			ThreadFactory threadFactory) {
+		List<Integer> sources = new ArrayList<Integer>();
+		for (int i = 0; i < NUMBER_OF_VALUES; i++) {
+			sources.add(i);
+		}
+
+		return new PrefetchingIterator<Integer, String>(sources.iterator(),
+				1, 1, threadFactory) {
+			@Override
+			protected String convert(Integer source) {
+				return source.toString();
+			}
+
+			@Override
+			protected long getMaxIdleMillis() {
+				return MAX_IDLE_MILLIS;
+			}
+		};
+	}
+
+	private static List<String> createValues() {
+		List<String> values = new ArrayList<String>();
+		for (int i = 0; i < NUMBER_OF_VALUES; i++) {
+			values.add(Integer.toString(i));
+		}
+
+		return values;
+	}
+
+	private static List<String> toList(PrefetchingIterator<?, String> iterator) {
+		List<String> values = new ArrayList<String>();
+		while (iterator.hasNext()) {
+			values.add(iterator.next());
+		}
+
+		return values;
+	}
+
+	private static class RecordingThreadFactory implements ThreadFactory {
+		private final List<Thread> threads = Collections
+				.synchronizedList(new ArrayList<Thread>());
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			threads.add(thread);
+
+			return thread;
+		}
+
+		public Thread getLastThread() {
+			return threads.get(threads.size() - 1);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package org.koherent.database.gae;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.koherent.database.DatabaseException;
+import org.koherent.database.Value;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class ProjectionTest {
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+			new LocalDatastoreServiceTestConfig());
+	private final ItemDatabase database = new ItemDatabase();
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void testProject() {
+		try {
+			database.put(Arrays.asList(new Item("a", "apple", 3,
+					Color.RED), new Item("b", "banana", 5, Color.YELLOW)));
+
+			Map<String, Item> items = new HashMap<String, Item>();
+			for (Item item : database.project(Arrays.asList("name", "count",
+					"color"))) {
+				items.put(item.getId(), item);
+			}
+
+			assertEquals(2, items.size());
+			assertEquals("apple", items.get("a").getName());
+			assertEquals(3, items.get("a").getCount());
+			assertEquals(Color.RED, items.get("a").getColor());
+			assertNull(items.get("a").getDescription());
+			assertEquals(5, items.get("b").getCount());
+			assertEquals(Color.YELLOW, items.get("b").getColor());
+		} catch (DatabaseException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	private enum Color {
+		RED, YELLOW
+	}
+
+	private static class Item implements Value<String> {
+		@Id
+		private String id;
+
+		@Property
+		private String name;
+
+		@Property
+		private int count;
+
+		@Property
+		private Color color;
+
+		@Property(indexed = false)
+		private String description;
+
+		@SuppressWarnings("unused")
+		private Item() {
+			super();
+		}
+
+		public Item(String id, String name, int count, Color color) {
+			super();
+			this.id = id;
+			this.name = name;
+			this.count = count;
+			this.color = color;
+			this.description = name + " " + count;
+		}
+
+		@Override
+		public String getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public Color getColor() {
+			return color;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+	}
+
+	private static class ItemDatabase extends StringIdDatabase<Item> {
+		@Override
+		protected String getKind() {
+			return "Item";
+		}
+
+		@Override
+		protected Class<Item> getValueClass() {
+			return Item.class;
+		}
+	}
+}
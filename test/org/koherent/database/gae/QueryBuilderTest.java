@@ -0,0 +1,179 @@
+package org.koherent.database.gae;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.koherent.database.gae.CompositeIndex.ascending;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.koherent.database.DatabaseException;
+import org.koherent.database.Value;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class QueryBuilderTest {
+	private static final String KIND = "Item";
+	private static final String COUNT = "count";
+	private static final String COLOR = "color";
+
+	// Keys need the application id of the current environment.
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+	private final InMemoryDatastoreService datastore = new InMemoryDatastoreService();
+	private final ItemDatabase database = new ItemDatabase();
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+
+		try {
+			database.put(Arrays.asList(new Item("a", 3, "red"), new Item("b",
+					1, "yellow"), new Item("c", 5, "red"), new Item("d", 2,
+					"red"), new Item("e", 4, "yellow")));
+		} catch (DatabaseException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void testFilters() {
+		assertEquals(Arrays.asList("b", "e"),
+				getIds(database.query().equal(COLOR, "yellow").ids()));
+		assertEquals(Arrays.asList("d", "a", "e"), getIds(database.query()
+				.greaterThan(COUNT, 1L).lessThan(COUNT, 5L).ascending(COUNT)
+				.ids()));
+		assertEquals(Arrays.asList("a", "c"), getIds(database.query()
+				.in(COLOR, Arrays.asList("red")).greaterThanOrEqual(COUNT, 3L)
+				.ascending(COUNT).ids()));
+	}
+
+	@Test
+	public void testMissingIndex() {
+		try {
+			database.query().equal(COLOR, "red").greaterThan(COUNT, 1L)
+					.ascending("description").ids();
+			fail("IllegalArgumentException must be thrown.");
+		} catch (IllegalArgumentException e) {
+			// The inequality property must be sorted first.
+		}
+
+		try {
+			database.query().equal(COUNT, 1L).descending(COLOR).ids();
+			fail("IllegalStateException must be thrown.");
+		} catch (IllegalStateException e) {
+			// No composite index is declared for the query.
+		}
+	}
+
+	@Test
+	public void testSortOrder() {
+		assertEquals(Arrays.asList("c", "e", "a", "d", "b"),
+				getIds(database.query().descending(COUNT).ids()));
+
+		List<Long> counts = new ArrayList<Long>();
+		for (Item item : database.query().equal(COLOR, "red")
+				.ascending(COUNT).values()) {
+			counts.add(item.getCount());
+		}
+		assertEquals(Arrays.asList(2L, 3L, 5L), counts);
+	}
+
+	@Test
+	public void testLimitAndCursor() {
+		try {
+			Page<? extends Item> page = database.query().ascending(COUNT)
+					.values(2, null);
+			assertEquals(Arrays.asList("b", "d"), getIds(page));
+
+			page = database.query().ascending(COUNT)
+					.values(2, page.getEndCursor());
+			assertEquals(Arrays.asList("a", "e"), getIds(page));
+
+			Page<? extends String> idPage = database.query().ascending(COUNT)
+					.ids(2, page.getEndCursor());
+			assertEquals(Collections.singletonList("c"), getIds(idPage));
+			assertNull(idPage.getEndCursor());
+		} catch (DatabaseException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	private static List<String> getIds(Iterable<?> valuesOrIds) {
+		List<String> ids = new ArrayList<String>();
+		for (Object valueOrId : valuesOrIds) {
+			ids.add(valueOrId instanceof Item ? ((Item) valueOrId).getId()
+					: (String) valueOrId);
+		}
+
+		return ids;
+	}
+
+	private static class Item implements Value<String> {
+		@Id
+		private String id;
+
+		@Property
+		private long count;
+
+		@Property
+		private String color;
+
+		@SuppressWarnings("unused")
+		private Item() {
+			super();
+		}
+
+		public Item(String id, long count, String color) {
+			super();
+			this.id = id;
+			this.count = count;
+			this.color = color;
+		}
+
+		@Override
+		public String getId() {
+			return id;
+		}
+
+		public long getCount() {
+			return count;
+		}
+	}
+
+	private class ItemDatabase extends StringIdDatabase<Item> {
+		@Override
+		protected String getKind() {
+			return KIND;
+		}
+
+		@Override
+		protected Class<Item> getValueClass() {
+			return Item.class;
+		}
+
+		@Override
+		protected DatastoreService getDatastoreService() {
+			return datastore;
+		}
+
+		@Override
+		protected Iterable<CompositeIndex> getCompositeIndexes() {
+			return Collections.singletonList(new CompositeIndex(false,
+					ascending(COLOR), ascending(COUNT)));
+		}
+	}
+}
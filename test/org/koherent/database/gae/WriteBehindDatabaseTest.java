@@ -0,0 +1,164 @@
+package org.koherent.database.gae;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.koherent.database.DatabaseException;
+import org.koherent.database.Value;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+
+public class WriteBehindDatabaseTest {
+	private static final String KIND = "Item";
+	private static final long TIMEOUT_MILLIS = 10 * 1000;
+
+	// Keys need the application id of the current environment.
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+	private final InMemoryDatastoreService datastore = new InMemoryDatastoreService();
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void testQuerySeesPendingWrites() {
+		ItemDatabase database = new ItemDatabase(60 * 1000);
+
+		try {
+			database.put(new Item("a", "apple"));
+			assertTrue(datastore.get(getKeys("a")).isEmpty());
+
+			List<String> names = new ArrayList<String>();
+			for (Item item : database.getAll()) {
+				names.add(item.getName());
+			}
+			assertEquals(Collections.singletonList("apple"), names);
+		} catch (DatabaseException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testScheduledFlush() throws InterruptedException {
+		ItemDatabase database = new ItemDatabase(50);
+
+		try {
+			database.put(new Item("a", "apple"));
+		} catch (DatabaseException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+
+		// The queue is flushed although no more writes are queued.
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (datastore.get(getKeys("a")).isEmpty()) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private static List<Key> getKeys(String id) {
+		return Collections.singletonList(KeyFactory.createKey(KIND, id));
+	}
+
+	private static class Item implements Value<String> {
+		@Id
+		private String id;
+
+		@Property
+		private String name;
+
+		@SuppressWarnings("unused")
+		private Item() {
+			super();
+		}
+
+		public Item(String id, String name) {
+			super();
+			this.id = id;
+			this.name = name;
+		}
+
+		@Override
+		public String getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	private class ItemDatabase extends StringIdDatabase<Item> {
+		private final WriteBehindQueue<String, Item> queue;
+
+		public ItemDatabase(long maxDelayMillis) {
+			super();
+			this.queue = new WriteBehindQueue<String, Item>(100,
+					maxDelayMillis);
+		}
+
+		@Override
+		protected String getKind() {
+			return KIND;
+		}
+
+		@Override
+		protected Class<Item> getValueClass() {
+			return Item.class;
+		}
+
+		@Override
+		protected DatastoreService getDatastoreService() {
+			return datastore;
+		}
+
+		@Override
+		protected WriteBehindQueue<String, Item> getWriteBehindQueue() {
+			return queue;
+		}
+
+		// Flushes run on threads which share the environment of the test.
+		@Override
+		protected ThreadFactory getThreadFactory() {
+			final ApiProxy.Environment environment = ApiProxy
+					.getCurrentEnvironment();
+
+			return new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					Thread thread = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							ApiProxy.setEnvironmentForCurrentThread(environment);
+							runnable.run();
+						}
+					});
+					thread.setDaemon(true);
+
+					return thread;
+				}
+			};
+		}
+	}
+}
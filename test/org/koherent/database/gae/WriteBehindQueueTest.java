@@ -0,0 +1,65 @@
+package org.koherent.database.gae;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class WriteBehindQueueTest {
+	@Test
+	public void testWritesVisibleWhileFlushing() {
+		WriteBehindQueue<Long, String> queue = new WriteBehindQueue<Long, String>(
+				10, 1000);
+		queue.put(1L, "a");
+		queue.remove(2L);
+
+		Map<Long, WriteBehindQueue.Write<String>> writes = queue.snapshot();
+		assertEquals(2, writes.size());
+		assertEquals("a", queue.get(1L).getValue());
+		assertTrue(queue.get(2L).isRemoval());
+
+		queue.removeApplied(writes);
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testNewerWritesKept() {
+		WriteBehindQueue<Long, String> queue = new WriteBehindQueue<Long, String>(
+				10, 1000);
+		queue.put(1L, "a");
+		queue.put(2L, "b");
+
+		Map<Long, WriteBehindQueue.Write<String>> writes = queue.snapshot();
+		queue.put(1L, "c");
+		queue.discard(2L);
+		queue.put(2L, "d");
+		queue.removeApplied(writes);
+
+		assertEquals(2, queue.size());
+		assertEquals("c", queue.get(1L).getValue());
+		assertEquals("d", queue.get(2L).getValue());
+	}
+
+	@Test
+	public void testFailedWritesKept() {
+		WriteBehindQueue<Long, String> queue = new WriteBehindQueue<Long, String>(
+				2, 1000);
+		assertFalse(queue.isFlushNeeded());
+		queue.put(1L, "a");
+		queue.put(2L, "b");
+		assertTrue(queue.isFlushNeeded());
+
+		// A failed flush does not remove the writes.
+		queue.snapshot();
+		assertTrue(queue.isFlushNeeded());
+		assertEquals("a", queue.get(1L).getValue());
+
+		queue.removeApplied(queue.snapshot());
+		assertFalse(queue.isFlushNeeded());
+		assertNull(queue.get(1L));
+	}
+}